@@ -6,10 +6,11 @@ import java.io.IOException;
 import nbt.map.Biomes;
 import nbt.map.Blocks;
 import nbt.map.Chunk;
+import nbt.map.LightEngine;
 import nbt.map.SerialChunkManager;
+import nbt.map.WorkerPool;
 import nbt.map.pos.GamePosition;
 import nbt.map.pos.InChunkPosition;
-import nbt.map.pos.Position3D;
 import nbt.map.pos.WorldPosition;
 import nbt.world.Level;
 import nbt.world.Player;
@@ -156,24 +157,35 @@ public final class MainHardcore {
   private static void createBorder(final World w, final int radius,
       final int border) {
     final SerialChunkManager ow = w.getOverworld();
-    for(int b = 0; b < border; ++b) {
-      round(ow, radius + b);
+    final WorkerPool pool = WorkerPool.acquireLoader();
+    try {
+      final LightEngine light = ow.createLightEngine(pool);
+      for(int b = 0; b < border; ++b) {
+        round(ow, light, radius + b);
+      }
+      System.err.println("[info] relighting " + light.getChangedChunks()
+          + " chunks");
+      light.relight();
+    } finally {
+      pool.release();
     }
   }
 
-  private static void round(final SerialChunkManager ow, final int dist) {
+  private static void round(final SerialChunkManager ow,
+      final LightEngine light, final int dist) {
     Chunk lastChunk = null;
-    lastChunk = row(ow, dist, true, true, lastChunk);
-    lastChunk = row(ow, dist, false, true, lastChunk);
-    lastChunk = row(ow, dist, true, false, lastChunk);
-    lastChunk = row(ow, dist, false, false, lastChunk);
+    lastChunk = row(ow, light, dist, true, true, lastChunk);
+    lastChunk = row(ow, light, dist, false, true, lastChunk);
+    lastChunk = row(ow, light, dist, true, false, lastChunk);
+    lastChunk = row(ow, light, dist, false, false, lastChunk);
     if(lastChunk != null) {
       ow.unloadChunk(lastChunk);
     }
   }
 
-  private static Chunk row(final SerialChunkManager ow, final int dist,
-      final boolean hor, final boolean positive, final Chunk lc) {
+  private static Chunk row(final SerialChunkManager ow,
+      final LightEngine light, final int dist, final boolean hor,
+      final boolean positive, final Chunk lc) {
     Chunk lastChunk = lc;
     final int a = positive ? dist : -dist;
     for(int t = -dist; t <= dist; ++t) {
@@ -190,6 +202,7 @@ public final class MainHardcore {
       }
       if(chunk != null) {
         editColumn(chunk, pos.getPosInChunk());
+        light.columnChanged(pos.x, pos.z);
       }
     }
     return lastChunk;
@@ -198,14 +211,9 @@ public final class MainHardcore {
   private static final int THRESHOLD = 65;
 
   private static void editColumn(final Chunk chunk, final InChunkPosition pos) {
-    for(int y = 0; y <= Chunk.WORLD_MAX_Y; ++y) {
-      if(!chunk.canEdit(y)) {
-        continue;
-      }
-      chunk.setBlock(new Position3D(pos, y), y > THRESHOLD
-          ? Blocks.AIR
-          : Blocks.WATER_STAT);
-    }
+    chunk.setColumn(pos.x, pos.z, 0, THRESHOLD, Blocks.WATER_STAT.id);
+    chunk.setColumn(pos.x, pos.z, THRESHOLD + 1, Chunk.WORLD_MAX_Y - 1,
+        Blocks.AIR.id);
     chunk.setBiome(pos, Biomes.OCEAN);
   }
 
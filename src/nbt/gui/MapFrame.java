@@ -83,6 +83,7 @@ public class MapFrame extends JFrame {
   @Override
   public void dispose() {
     view.setControls(null);
+    view.dispose();
     super.dispose();
   }
 
@@ -3,6 +3,7 @@ package nbt.gui;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
@@ -34,7 +35,9 @@ import javax.swing.WindowConstants;
 import nbt.map.Chunk;
 import nbt.map.ChunkEdit;
 import nbt.map.ChunkManager;
+import nbt.map.ChunkPin;
 import nbt.map.ChunkPainter;
+import nbt.map.LightEngine;
 import nbt.map.UpdateReceiver;
 import nbt.map.pos.ChunkPosition;
 import nbt.map.pos.InChunkPosition;
@@ -156,6 +159,7 @@ public class MapViewer extends JComponent implements UpdateReceiver {
       @Override
       public void mouseExited(final MouseEvent e) {
         setToolTipText(null);
+        mousePos = null;
       }
 
       @Override
@@ -169,6 +173,7 @@ public class MapViewer extends JComponent implements UpdateReceiver {
     addMouseWheelListener(mouse);
     final InputMap inp = new InputMap();
     inp.put(KeyStroke.getKeyStroke(KeyEvent.VK_B, 0), "BIOME");
+    inp.put(KeyStroke.getKeyStroke(KeyEvent.VK_S, 0), "STATS");
     final ActionMap am = new ActionMap();
     am.put("BIOME", new AbstractAction() {
 
@@ -179,6 +184,16 @@ public class MapViewer extends JComponent implements UpdateReceiver {
         toggleBiomes();
       }
 
+    });
+    am.put("STATS", new AbstractAction() {
+
+      private static final long serialVersionUID = 2867213617620591841L;
+
+      @Override
+      public void actionPerformed(final ActionEvent e) {
+        toggleStatistics();
+      }
+
     });
     setActionMap(am);
     setInputMap(WHEN_ANCESTOR_OF_FOCUSED_COMPONENT, inp);
@@ -235,6 +250,45 @@ public class MapViewer extends JComponent implements UpdateReceiver {
     t.start();
   }
 
+  /** Whether the statistics are shown in the map view. */
+  private boolean showStatistics;
+
+  /**
+   * Toggles whether to show the utilization of the worker pools and caches in
+   * the map view.
+   */
+  public void toggleStatistics() {
+    showStatistics = !showStatistics;
+    repaint();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The utilization of the worker pools and caches.
+   */
+  public List<String> getStatistics() {
+    final List<String> res = new ArrayList<String>();
+    res.add(manager.getPool().toString());
+    res.add(painter.getPool().toString());
+    res.add(manager.getCache().toString());
+    res.add(manager.getBlobCache().toString());
+    if(manager.getSectionStore() != null) {
+      res.add(manager.getSectionStore().toString());
+    }
+    res.add(manager.getWriteQueue().toString());
+    return res;
+  }
+
+  /**
+   * Releases the chunk manager and the painter. The viewer must not be used
+   * afterwards.
+   */
+  public void dispose() {
+    manager.dispose();
+    painter.dispose();
+  }
+
   /**
    * Toggles whether to show biome data in the map view.
    */
@@ -349,10 +403,29 @@ public class MapViewer extends JComponent implements UpdateReceiver {
    * @param editor The editor.
    */
   public void editChunk(final ScreenPosition pos, final ChunkEdit editor) {
+    editChunk(pos, editor, null);
+  }
+
+  /**
+   * Edits a column and records it for relighting.
+   * 
+   * @param pos The position.
+   * @param editor The editor.
+   * @param light The light engine or <code>null</code>.
+   */
+  public void editChunk(final ScreenPosition pos, final ChunkEdit editor,
+      final LightEngine light) {
     final WorldPosition pw = getPositionOnScreen(pos);
-    final Chunk c = getChunk(pw);
-    if(c == null) return;
-    manager.editChunk(c, pw.getPosInChunk(), editor);
+    final ChunkPin pin = manager.pin(pw.getPosOfChunk());
+    if(pin == null) return;
+    try {
+      manager.editChunk(pin.getChunk(), pw.getPosInChunk(), editor);
+      if(light != null) {
+        light.columnChanged(pw.x, pw.z);
+      }
+    } finally {
+      pin.close();
+    }
   }
 
   private final class Waiter extends Thread {
@@ -428,6 +501,25 @@ public class MapViewer extends JComponent implements UpdateReceiver {
 
   }
 
+  /**
+   * Creates a light engine for the loaded chunks.
+   * 
+   * @return The light engine.
+   */
+  public LightEngine createLightEngine() {
+    return manager.createLightEngine();
+  }
+
+  /**
+   * Recomputes the light of the columns recorded by a light engine in the
+   * background. The map is repainted afterwards.
+   * 
+   * @param light The light engine.
+   */
+  public void relightLater(final LightEngine light) {
+    manager.relightLater(light);
+  }
+
   /**
    * Signals that an edit has finished.
    */
@@ -435,16 +527,19 @@ public class MapViewer extends JComponent implements UpdateReceiver {
     manager.editFinished();
   }
 
-  private Chunk selChunk;
+  private volatile Chunk selChunk;
 
   private InChunkPosition selPos;
 
+  private ScreenPosition mousePos;
+
   /**
    * Selects a screen coordinate.
    * 
    * @param pos The position.
    */
   public void selectAtScreen(final ScreenPosition pos) {
+    mousePos = pos;
     final WorldPosition pw = getPositionOnScreen(pos);
     selChunk = getChunk(pw);
     selPos = pw.getPosInChunk();
@@ -470,13 +565,31 @@ public class MapViewer extends JComponent implements UpdateReceiver {
     final Rectangle r = getBounds();
     g.setColor(getBackground());
     g.fill(r);
+    final ScreenPosition focus = mousePos != null ? mousePos
+        : new ScreenPosition(r.width / 2, r.height / 2);
+    final WorldPosition fw = getPositionOnScreen(focus);
+    manager.setFocus(fw.x, fw.z);
+    // only a full repaint knows every visible chunk
+    final Rectangle clip = g.getClipBounds();
+    final boolean full = clip == null
+        || clip.contains(0, 0, r.width, r.height);
     g.translate(-offX, -offZ);
+    if(full) {
+      manager.beginViewport();
+    }
     final ChunkPosition[] reloadEntries = manager.getReloadEntries();
     for(final ChunkPosition pos : reloadEntries) {
       if(painter.isValidPos(g, pos)) {
         manager.needsReload(pos);
       }
     }
+    if(full) {
+      final WorldPosition min = getPositionOnScreen(new ScreenPosition(0, 0));
+      final WorldPosition max =
+          getPositionOnScreen(new ScreenPosition(r.width, r.height));
+      manager.prefetch(min.x, min.z, max.x, max.z);
+      manager.endViewport();
+    }
     final ChunkPosition[] chunksEntries = manager.getChunkEntries();
     boolean hasMid = false;
     double midX = 0;
@@ -513,6 +626,33 @@ public class MapViewer extends JComponent implements UpdateReceiver {
       g2.fill(selectionShape);
       g2.dispose();
     }
+    if(showStatistics) {
+      g.translate(offX, offZ);
+      drawStatistics(g);
+    }
+  }
+
+  /**
+   * Draws the statistics in the upper left corner of the view.
+   * 
+   * @param g The graphics context in screen coordinates.
+   */
+  private void drawStatistics(final Graphics2D g) {
+    final List<String> lines = getStatistics();
+    final FontMetrics fm = g.getFontMetrics();
+    int w = 0;
+    for(final String line : lines) {
+      w = Math.max(w, fm.stringWidth(line));
+    }
+    final int lh = fm.getHeight();
+    g.setColor(new Color(0xc0000000, true));
+    g.fillRect(0, 0, w + 8, lh * lines.size() + 8);
+    g.setColor(Color.WHITE);
+    int y = 4 + fm.getAscent();
+    for(final String line : lines) {
+      g.drawString(line, 4, y);
+      y += lh;
+    }
   }
 
   private Area selectionShape;
@@ -573,10 +713,6 @@ public class MapViewer extends JComponent implements UpdateReceiver {
    * @param chunk The chunk.
    */
   protected void unloadChunk(final Chunk chunk) {
-    painter.unloadChunk(chunk);
-    if(selChunk == chunk) {
-      selChunk = null;
-    }
     manager.unloadChunk(chunk);
   }
 
@@ -616,25 +752,11 @@ public class MapViewer extends JComponent implements UpdateReceiver {
   }
 
   @Override
-  public synchronized void memoryPanic() {
-    System.err.println("full memory cleanup");
-    System.err.print("before: ");
-    printMemStat();
-    painter.clearBiomes();
-    manager.unloadAllowed();
-    for(int i = 0; i < 6; ++i) {
-      System.gc();
+  public void chunkUnloaded(final Chunk chunk) {
+    painter.unloadChunk(chunk);
+    if(selChunk == chunk) {
+      selChunk = null;
     }
-    System.err.print("after: ");
-    printMemStat();
-  }
-
-  private static void printMemStat() {
-    final Runtime r = Runtime.getRuntime();
-    final long free = r.freeMemory();
-    final long max = r.maxMemory();
-    final double ratio = (double) free / (double) max;
-    System.err.println("free memory / max memory: " + ratio);
   }
 
 }
@@ -4,6 +4,7 @@ import nbt.gui.ClickReceiver;
 import nbt.gui.MapViewer;
 import nbt.map.Chunk;
 import nbt.map.ChunkEdit;
+import nbt.map.LightEngine;
 import nbt.map.pos.InChunkPosition;
 import nbt.map.pos.ScreenPosition;
 
@@ -61,6 +62,8 @@ public abstract class Brush implements ClickReceiver {
 
   @Override
   public void clicked(final int x, final int z) {
+    final LightEngine light = changesLight() ? viewer.createLightEngine()
+        : null;
     for(int i = -dr; i <= dr; ++i) {
       final int isq = i * i;
       for(int j = -dr; j <= dr; ++j) {
@@ -69,9 +72,13 @@ public abstract class Brush implements ClickReceiver {
         }
         final int posX = x + i;
         final int posZ = z + j;
-        viewer.editChunk(new ScreenPosition(posX, posZ), edit);
+        viewer.editChunk(new ScreenPosition(posX, posZ), edit, light);
       }
     }
+    if(light != null) {
+      // the chunks are saved when the light has been recomputed
+      viewer.relightLater(light);
+    }
     viewer.editFinished();
   }
 
@@ -80,6 +87,17 @@ public abstract class Brush implements ClickReceiver {
     return circle;
   }
 
+  /**
+   * Getter.
+   * 
+   * @return Whether the brush changes blocks that affect the light. The light
+   *         of the edited columns is recomputed in the background after each
+   *         click.
+   */
+  protected boolean changesLight() {
+    return false;
+  }
+
   /**
    * Edits a single column in a chunk.
    * 
@@ -5,10 +5,10 @@ import javax.swing.JOptionPane;
 
 import nbt.gui.MapViewer;
 import nbt.map.Biomes;
+import nbt.map.BlockCursor;
 import nbt.map.Blocks;
 import nbt.map.Chunk;
 import nbt.map.pos.InChunkPosition;
-import nbt.map.pos.Position3D;
 
 /**
  * Converts a part of a map into a dessert. That is every stone/dirt block over
@@ -20,6 +20,8 @@ public class DesertBrush extends Brush {
 
   private final boolean sandstone;
 
+  private final BlockCursor cursor = new BlockCursor();
+
   /**
    * Creates a desert brush.
    * 
@@ -38,6 +40,11 @@ public class DesertBrush extends Brush {
     return "Desert Brush";
   }
 
+  @Override
+  protected boolean changesLight() {
+    return true;
+  }
+
   /**
    * The minimum height for sand.
    */
@@ -45,13 +52,10 @@ public class DesertBrush extends Brush {
 
   @Override
   protected void edit(final Chunk c, final InChunkPosition posInChunk) {
-    for(int y = START; y <= Chunk.WORLD_MAX_Y; ++y) {
-      if(!c.hasBlockFor(y)) {
-        continue;
-      }
-      final Position3D pos = new Position3D(posInChunk, y);
-      final Blocks b = c.getBlock(pos);
-      switch(b) {
+    cursor.column(c, posInChunk.x, posInChunk.z, START,
+        Chunk.WORLD_MAX_Y - 1);
+    while(cursor.next()) {
+      switch(cursor.getBlock()) {
         case WATER_STAT:
         case WATER:
         case GRASS:
@@ -60,11 +64,11 @@ public class DesertBrush extends Brush {
         case GRAVEL:
         case SAND:
         case SANDSTONE:
-          c.setBlock(pos, sandstone ? Blocks.SANDSTONE : Blocks.SAND);
+          cursor.setBlock(sandstone ? Blocks.SANDSTONE : Blocks.SAND);
           break;
         case DANDELION:
         case ROSE:
-          c.setBlock(pos, Blocks.AIR);
+          cursor.setBlock(Blocks.AIR);
           break;
         default:
           break;
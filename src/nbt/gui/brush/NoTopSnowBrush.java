@@ -1,10 +1,10 @@
 package nbt.gui.brush;
 
 import nbt.gui.MapViewer;
+import nbt.map.BlockCursor;
 import nbt.map.Blocks;
 import nbt.map.Chunk;
 import nbt.map.pos.InChunkPosition;
-import nbt.map.pos.Position3D;
 
 /**
  * This brush removes all snow and ice blocks that are at the top of a column.
@@ -33,17 +33,27 @@ public class NoTopSnowBrush extends Brush {
 
   private final boolean onlyOnTop;
 
+  private final BlockCursor cursor = new BlockCursor();
+
   @Override
   protected void edit(final Chunk c, final InChunkPosition p) {
-    Position3D pos = c.getTopNonAirBlock(p);
-    while(pos.y >= 0) {
-      final Blocks b = c.getBlock(pos);
+    boolean top = false;
+    cursor.column(c, p.x, p.z, Chunk.WORLD_MAX_Y - 1, 0);
+    while(cursor.next()) {
+      final Blocks b = cursor.getBlock();
+      if(!top) {
+        // skip the air above the top block
+        if(b == Blocks.AIR) {
+          continue;
+        }
+        top = true;
+      }
       switch(b) {
         case SNOW:
-          c.setBlock(pos, Blocks.AIR);
+          cursor.setBlock(Blocks.AIR);
           break;
         case ICE:
-          c.setBlock(pos, Blocks.WATER_STAT);
+          cursor.setBlock(Blocks.WATER_STAT);
           break;
         default:
           break;
@@ -51,7 +61,6 @@ public class NoTopSnowBrush extends Brush {
       if(onlyOnTop) {
         break;
       }
-      pos = new Position3D(pos.x, pos.y - 1, pos.z);
     }
   }
 
@@ -5,7 +5,6 @@ import nbt.map.Biomes;
 import nbt.map.Blocks;
 import nbt.map.Chunk;
 import nbt.map.pos.InChunkPosition;
-import nbt.map.pos.Position3D;
 
 /**
  * Replaces all blocks with air or water sources depending on height. This
@@ -30,19 +29,17 @@ public class WorldBorderBrush extends Brush {
     return "World Border Brush";
   }
 
+  @Override
+  protected boolean changesLight() {
+    return true;
+  }
+
   @Override
   protected void edit(final Chunk c, final InChunkPosition posInChunk) {
-    for(int y = 0; y <= Chunk.WORLD_MAX_Y; ++y) {
-      if(!c.canEdit(y)) {
-        continue;
-      }
-      final Position3D pos = new Position3D(posInChunk, y);
-      if(y <= 65) {
-        c.setBlock(pos, Blocks.WATER_STAT);
-      } else {
-        c.setBlock(pos, Blocks.AIR);
-      }
-    }
+    final int x = posInChunk.x;
+    final int z = posInChunk.z;
+    c.setColumn(x, z, 0, 65, Blocks.WATER_STAT.id);
+    c.setColumn(x, z, 66, Chunk.WORLD_MAX_Y - 1, Blocks.AIR.id);
     c.setBiome(posInChunk, Biomes.OCEAN);
   }
 
@@ -0,0 +1,295 @@
+package nbt.map;
+
+/**
+ * Iterates over the blocks of a column, a section or a box of a chunk without
+ * allocating objects. A cursor can be reused for any number of iterations.
+ * Only blocks of existing sections are visited. Blocks of missing sections
+ * are air and can be set via {@link Chunk#setBlockId(int, int, int, int)} or
+ * the fill operations of the chunk which create the sections. Within a layer
+ * the blocks are visited in the order of their storage. A cursor must not be
+ * shared between threads.
+ * 
+ * <pre>
+ * final BlockCursor cur = new BlockCursor();
+ * cur.column(chunk, x, z, 0, Chunk.WORLD_MAX_Y - 1);
+ * while(cur.next()) {
+ *   if(cur.getBlockId() == Blocks.SNOW.id) {
+ *     cur.setBlockId(Blocks.AIR.id);
+ *   }
+ * }
+ * </pre>
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class BlockCursor {
+
+  private Chunk chunk;
+
+  private Section section;
+
+  private int sectionY;
+
+  private int minX;
+
+  private int maxX;
+
+  private int minZ;
+
+  private int maxZ;
+
+  private int toY;
+
+  private int dy;
+
+  private int x;
+
+  private int y;
+
+  private int z;
+
+  private int index;
+
+  private boolean started;
+
+  private boolean done = true;
+
+  /**
+   * Starts iterating over a column.
+   * 
+   * @param c The chunk.
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @param fromY The first height. When it is greater than <code>toY</code>
+   *          the column is iterated downwards.
+   * @param toY The last height, inclusive.
+   * @return The cursor.
+   */
+  public BlockCursor column(final Chunk c, final int x, final int z,
+      final int fromY, final int toY) {
+    return box(c, x, fromY, z, x, toY, z);
+  }
+
+  /**
+   * Starts iterating over a section.
+   * 
+   * @param c The chunk.
+   * @param sectionY The index of the section.
+   * @return The cursor.
+   */
+  public BlockCursor section(final Chunk c, final int sectionY) {
+    return box(c, 0, sectionY << 4, 0, 15, (sectionY << 4) + 15, 15);
+  }
+
+  /**
+   * Starts iterating over a box. The box is iterated layer by layer.
+   * 
+   * @param c The chunk.
+   * @param minX The minimal x coordinate within the chunk.
+   * @param fromY The first height. When it is greater than <code>toY</code>
+   *          the box is iterated downwards.
+   * @param minZ The minimal z coordinate within the chunk.
+   * @param maxX The maximal x coordinate within the chunk, inclusive.
+   * @param toY The last height, inclusive.
+   * @param maxZ The maximal z coordinate within the chunk, inclusive.
+   * @return The cursor.
+   */
+  public BlockCursor box(final Chunk c, final int minX, final int fromY,
+      final int minZ, final int maxX, final int toY, final int maxZ) {
+    Chunk.checkBox(minX, minZ, maxX, maxZ);
+    chunk = c;
+    section = null;
+    sectionY = -1;
+    this.minX = minX;
+    this.maxX = maxX;
+    this.minZ = minZ;
+    this.maxZ = maxZ;
+    dy = fromY <= toY ? 1 : -1;
+    final int top = Chunk.WORLD_MAX_Y - 1;
+    y = Math.max(0, Math.min(fromY, top));
+    this.toY = Math.max(0, Math.min(toY, top));
+    done = minX > maxX || minZ > maxZ || (dy > 0 ? fromY > top : fromY < 0)
+        || (dy > 0 ? toY < 0 : toY > top);
+    started = false;
+    return this;
+  }
+
+  /**
+   * Moves to the next block.
+   * 
+   * @return Whether there is a next block. When this method returns
+   *         <code>false</code> the cursor must not be accessed until a new
+   *         iteration is started.
+   */
+  public boolean next() {
+    if(done) return false;
+    if(!started) {
+      started = true;
+      x = minX;
+      z = minZ;
+      if(!enterLayer()) return false;
+    } else if(++x > maxX) {
+      x = minX;
+      if(++z > maxZ) {
+        z = minZ;
+        y += dy;
+        if(!enterLayer()) return false;
+      }
+    }
+    index = Section.index(x, y & 15, z);
+    return true;
+  }
+
+  /**
+   * Fetches the section of the current layer. Missing sections are skipped.
+   * 
+   * @return Whether there is a layer left.
+   */
+  private boolean enterLayer() {
+    for(;;) {
+      if(dy > 0 ? y > toY : y < toY) {
+        done = true;
+        chunk = null;
+        section = null;
+        return false;
+      }
+      final int sy = y >> 4;
+      if(sy != sectionY) {
+        sectionY = sy;
+        section = chunk.getDecodedSection(sy);
+      }
+      if(section != null) return true;
+      y = dy > 0 ? (sy + 1) << 4 : (sy << 4) - 1;
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The x coordinate within the chunk.
+   */
+  public int getX() {
+    return x;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The height.
+   */
+  public int getY() {
+    return y;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The z coordinate within the chunk.
+   */
+  public int getZ() {
+    return z;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The id of the current block.
+   */
+  public int getBlockId() {
+    return section.getId(index);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The current block.
+   */
+  public Blocks getBlock() {
+    return Blocks.getBlockForId(section.getId(index));
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param id The id of the current block.
+   */
+  public void setBlockId(final int id) {
+    if(section.getId(index) == id) return;
+    section.setId(index, id);
+    chunk.blockSet(x, y, z, id);
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param b The current block.
+   */
+  public void setBlock(final Blocks b) {
+    setBlockId(b.id);
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param id The id of the current block.
+   * @param meta The metadata of the current block.
+   */
+  public void setBlockId(final int id, final int meta) {
+    setBlockId(id);
+    section.getData().set(index, meta);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The metadata of the current block.
+   */
+  public int getData() {
+    return section.getData().get(index);
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param meta The metadata of the current block.
+   */
+  public void setData(final int meta) {
+    section.getData().set(index, meta);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The light emitted by blocks at the current position.
+   */
+  public int getBlockLight() {
+    return section.getBlockLight().get(index);
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param light The light emitted by blocks at the current position.
+   */
+  public void setBlockLight(final int light) {
+    section.getBlockLight().set(index, light);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The light of the sky at the current position.
+   */
+  public int getSkyLight() {
+    return section.getSkyLight().get(index);
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param light The light of the sky at the current position.
+   */
+  public void setSkyLight(final int light) {
+    section.getSkyLight().set(index, light);
+  }
+
+}
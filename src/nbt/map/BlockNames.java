@@ -0,0 +1,214 @@
+package nbt.map;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the block names of palette sections to block ids. Names of blocks that
+ * have no id are assigned ids from the top of the id range on first sight so
+ * that they survive being read and written. The mapping of those ids is only
+ * valid while the program runs.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+final class BlockNames {
+
+  private BlockNames() {
+    // no constructor
+  }
+
+  /** The namespace of the vanilla blocks. */
+  private static final String NAMESPACE = "minecraft:";
+
+  /** The number of possible block ids. */
+  private static final int MAX_IDS = 1 << 12;
+
+  /** The lowest id that is assigned to unknown names. */
+  private static final int MIN_ASSIGNED = 256;
+
+  /** The ids for the names. */
+  private static final Map<String, Integer> IDS =
+      new HashMap<String, Integer>();
+
+  /** The names for the ids. */
+  private static final String[] NAMES = new String[MAX_IDS];
+
+  private static int nextAssigned = MAX_IDS - 1;
+
+  static {
+    add(0, "air", "cave_air", "void_air");
+    add(1, "stone", "granite", "polished_granite", "diorite",
+        "polished_diorite", "andesite", "polished_andesite");
+    add(2, "grass_block");
+    add(3, "dirt", "coarse_dirt", "podzol");
+    add(4, "cobblestone");
+    add(5, "oak_planks", "spruce_planks", "birch_planks", "jungle_planks",
+        "acacia_planks", "dark_oak_planks");
+    add(6, "oak_sapling", "spruce_sapling", "birch_sapling",
+        "jungle_sapling", "acacia_sapling", "dark_oak_sapling");
+    add(7, "bedrock");
+    add(9, "water");
+    add(11, "lava");
+    add(12, "sand", "red_sand");
+    add(13, "gravel");
+    add(14, "gold_ore");
+    add(15, "iron_ore");
+    add(16, "coal_ore");
+    add(17, "oak_log", "spruce_log", "birch_log", "jungle_log",
+        "acacia_log", "dark_oak_log");
+    add(18, "oak_leaves", "spruce_leaves", "birch_leaves", "jungle_leaves",
+        "acacia_leaves", "dark_oak_leaves");
+    add(19, "sponge", "wet_sponge");
+    add(20, "glass");
+    add(21, "lapis_ore");
+    add(22, "lapis_block");
+    add(23, "dispenser");
+    add(24, "sandstone", "chiseled_sandstone", "cut_sandstone");
+    add(25, "note_block");
+    add(26, "red_bed");
+    add(27, "powered_rail");
+    add(28, "detector_rail");
+    add(29, "sticky_piston");
+    add(30, "cobweb");
+    add(31, "grass", "fern");
+    add(32, "dead_bush");
+    add(33, "piston");
+    add(34, "piston_head");
+    add(35, "white_wool", "orange_wool", "magenta_wool", "light_blue_wool",
+        "yellow_wool", "lime_wool", "pink_wool", "gray_wool",
+        "light_gray_wool", "cyan_wool", "purple_wool", "blue_wool",
+        "brown_wool", "green_wool", "red_wool", "black_wool");
+    add(36, "moving_piston");
+    add(37, "dandelion");
+    add(38, "poppy", "blue_orchid", "allium", "azure_bluet", "red_tulip",
+        "orange_tulip", "white_tulip", "pink_tulip", "oxeye_daisy");
+    add(39, "brown_mushroom");
+    add(40, "red_mushroom");
+    add(41, "gold_block");
+    add(42, "iron_block");
+    add(43, "smooth_stone");
+    add(44, "stone_slab");
+    add(45, "bricks");
+    add(46, "tnt");
+    add(47, "bookshelf");
+    add(48, "mossy_cobblestone");
+    add(49, "obsidian");
+    add(50, "torch", "wall_torch");
+    add(51, "fire");
+    add(52, "spawner");
+    add(53, "oak_stairs");
+    add(54, "chest");
+    add(55, "redstone_wire");
+    add(56, "diamond_ore");
+    add(57, "diamond_block");
+    add(58, "crafting_table");
+    add(59, "wheat");
+    add(60, "farmland");
+    add(61, "furnace");
+    add(63, "sign");
+    add(64, "oak_door");
+    add(65, "ladder");
+    add(66, "rail");
+    add(67, "cobblestone_stairs");
+    add(68, "wall_sign");
+    add(69, "lever");
+    add(70, "stone_pressure_plate");
+    add(71, "iron_door");
+    add(72, "oak_pressure_plate");
+    add(73, "redstone_ore");
+    add(76, "redstone_torch", "redstone_wall_torch");
+    add(77, "stone_button");
+    add(78, "snow");
+    add(79, "ice");
+    add(80, "snow_block");
+    add(81, "cactus");
+    add(82, "clay");
+    add(83, "sugar_cane");
+    add(84, "jukebox");
+    add(85, "oak_fence");
+    add(86, "carved_pumpkin", "pumpkin");
+    add(87, "netherrack");
+    add(88, "soul_sand");
+    add(89, "glowstone");
+    add(90, "nether_portal");
+    add(91, "jack_o_lantern");
+    add(92, "cake");
+    add(93, "repeater");
+    add(96, "oak_trapdoor");
+    add(97, "infested_stone", "infested_cobblestone",
+        "infested_stone_bricks");
+    add(98, "stone_bricks", "mossy_stone_bricks", "cracked_stone_bricks",
+        "chiseled_stone_bricks");
+    add(99, "brown_mushroom_block");
+    add(100, "red_mushroom_block", "mushroom_stem");
+    add(101, "iron_bars");
+    add(102, "glass_pane");
+    add(103, "melon");
+    add(104, "pumpkin_stem", "attached_pumpkin_stem");
+    add(105, "melon_stem", "attached_melon_stem");
+    add(106, "vine");
+    add(107, "oak_fence_gate");
+    add(108, "brick_stairs");
+    add(109, "stone_brick_stairs");
+    add(110, "mycelium");
+    add(111, "lily_pad");
+    add(112, "nether_bricks");
+    add(113, "nether_brick_fence");
+    add(114, "nether_brick_stairs");
+    add(115, "nether_wart");
+    add(116, "enchanting_table");
+    add(117, "brewing_stand");
+    add(118, "cauldron");
+    add(119, "end_portal");
+    add(120, "end_portal_frame");
+    add(121, "end_stone");
+    add(122, "dragon_egg");
+    add(123, "redstone_lamp");
+    // states that are properties of the flattened blocks
+    NAMES[8] = NAMES[9];
+    NAMES[10] = NAMES[11];
+    NAMES[62] = NAMES[61];
+    NAMES[74] = NAMES[73];
+    NAMES[75] = NAMES[76];
+    NAMES[94] = NAMES[93];
+    NAMES[124] = NAMES[123];
+  }
+
+  private static void add(final int id, final String... names) {
+    NAMES[id] = NAMESPACE + names[0];
+    for(final String name : names) {
+      IDS.put(NAMESPACE + name, id);
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param name The name of the block including its namespace.
+   * @return The block id. Unknown names get a new id.
+   */
+  static synchronized int getId(final String name) {
+    final Integer id = IDS.get(name);
+    if(id != null) return id;
+    if(nextAssigned < MIN_ASSIGNED) throw new IllegalStateException(
+        "too many unknown blocks");
+    final int res = nextAssigned--;
+    IDS.put(name, res);
+    NAMES[res] = name;
+    return res;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param id The block id.
+   * @return The name of the block.
+   */
+  static synchronized String getName(final int id) {
+    final String name = id >= 0 && id < MAX_IDS ? NAMES[id] : null;
+    if(name == null) throw new IllegalArgumentException(
+        "block id has no name: " + id);
+    return name;
+  }
+
+}
@@ -401,6 +401,12 @@ public enum Blocks {
 
   private static final DynamicArray<Blocks> BLOCK_MAP;
 
+  /** The number of possible block ids. */
+  private static final int MAX_IDS = 1 << 12;
+
+  /** The colors of all possible block ids in ARGB. */
+  private static final int[] ARGB = new int[MAX_IDS];
+
   static {
     final Blocks[] blocks = values();
     BLOCK_MAP = new DynamicArray<Blocks>(blocks.length);
@@ -412,6 +418,9 @@ public enum Blocks {
           "duplicate block id: " + block.id);
       BLOCK_MAP.set(block.id, block);
     }
+    for(int id = 0; id < MAX_IDS; ++id) {
+      ARGB[id] = getBlockForId(id).color.getRGB();
+    }
   }
 
   private Blocks(final int id, final Color color) {
@@ -431,4 +440,15 @@ public enum Blocks {
     return block != null ? block : DEFAULT_UNASSIGNED;
   }
 
+  /**
+   * Getter.
+   * 
+   * @param id The block id.
+   * @return The color of the corresponding block in ARGB.
+   */
+  public static int getArgb(final int id) {
+    if(id < 0 || id >= MAX_IDS) return DEFAULT_UNASSIGNED.color.getRGB();
+    return ARGB[id];
+  }
+
 }
@@ -3,10 +3,15 @@ package nbt.map;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import nbt.DynamicArray;
 import nbt.map.pos.ChunkInFilePosition;
 import nbt.map.pos.ChunkPosition;
 import nbt.map.pos.InChunkPosition;
@@ -14,8 +19,12 @@ import nbt.map.pos.Position3D;
 import nbt.read.MapReader;
 import nbt.record.NBTByteArray;
 import nbt.record.NBTCompound;
+import nbt.record.NBTIntArray;
+import nbt.record.NBTLongArray;
 import nbt.record.NBTList;
 import nbt.record.NBTNumeric;
+import nbt.record.NBTRecord;
+import nbt.record.NBTType;
 import net.minecraft.world.level.chunk.storage.RegionFile;
 
 /**
@@ -55,16 +64,36 @@ public class Chunk {
     this.otherPos = otherPos;
     this.file = file;
     level = root.get("Level");
+    dataVersion = Section.getDataVersion(root);
     xCache = ((NBTNumeric<Integer>) level.get("xPos")).getPayload();
     zCache = ((NBTNumeric<Integer>) level.get("zPos")).getPayload();
-    biomes = level.get("Biomes");
+    final NBTRecord b = level.get("Biomes");
+    biomes = b instanceof NBTByteArray || b instanceof NBTIntArray ? b : null;
+    final NBTRecord hm = level.get("HeightMap");
+    heightMap = hm instanceof NBTIntArray ? (NBTIntArray) hm : null;
     sections = level.get("Sections");
-    sectionCache = new DynamicArray<NBTCompound>(sections.getLength());
+    final SectionStore store = SectionStore.getInstance();
     for(final NBTCompound comp : sections) {
-      sectionCache.set(getSectionY(comp), comp);
+      if(store != null) {
+        store.share(comp);
+      }
+      final int y = getSectionY(comp);
+      if(y < 0 || y >= SECTIONS) {
+        continue;
+      }
+      sectionRecords[y] = comp;
     }
   }
 
+  /**
+   * Getter.
+   * 
+   * @return The record of the chunk.
+   */
+  protected NBTCompound getRoot() {
+    return root;
+  }
+
   /**
    * Getter.
    * 
@@ -92,20 +121,51 @@ public class Chunk {
     return file;
   }
 
-  private final NBTByteArray biomes;
+  /**
+   * The biomes of the chunk. Either a byte array or an int array with one
+   * biome per column, an int array with one biome per cell of 4 by 4 by 4
+   * blocks or <code>null</code> if the chunk has no biomes yet.
+   */
+  private NBTRecord biomes;
+
+  /** The first data version that stores the biomes in cells. */
+  private static final int BIOME_CELLS = 2203;
+
+  /** The number of biome cells in a chunk. */
+  private static final int CELLS = 4 * 4 * (WORLD_MAX_Y / 4);
 
   /**
    * Getter.
    * 
-   * @return Gets the biome array.
+   * @return Gets the biome record or <code>null</code> if there is none.
    */
-  protected NBTByteArray getBiomesArray() {
+  protected NBTRecord getBiomesRecord() {
     return biomes;
   }
 
+  /** The height map of the chunk or <code>null</code>. */
+  private final NBTIntArray heightMap;
+
+  /** The data version of the chunk. It determines the format of sections. */
+  private final int dataVersion;
+
+  /**
+   * The number of sections in a chunk.
+   */
+  public static final int SECTIONS = WORLD_MAX_Y / 16;
+
+  /** The list of the section records as stored in the chunk. */
   private final NBTList<NBTCompound> sections;
 
-  private final DynamicArray<NBTCompound> sectionCache;
+  private final NBTCompound[] sectionRecords = new NBTCompound[SECTIONS];
+
+  /**
+   * The decoded sections. Sections are decoded on first access. They are
+   * installed and removed under the lock of the chunk so that every record
+   * has exactly one decoded section.
+   */
+  private final AtomicReferenceArray<Section> sectionCache =
+      new AtomicReferenceArray<Section>(SECTIONS);
 
   /**
    * Gets a vertical section.
@@ -114,61 +174,219 @@ public class Chunk {
    * @return The section corresponding to the y position.
    */
   protected NBTCompound getSection(final int y) {
-    return sectionCache.get(y);
+    if(y < 0 || y >= SECTIONS) return null;
+    return sectionRecords[y];
   }
 
-  private static int getSectionY(final NBTCompound section) {
+  /**
+   * Getter.
+   * 
+   * @param section The record of a section.
+   * @return The vertical index of the section.
+   */
+  static int getSectionY(final NBTCompound section) {
     return ((NBTNumeric<Byte>) section.get("Y")).getPayload();
   }
 
-  private static int getBlockPositionInSection(final InChunkPosition pos,
-      final int y) {
-    return (y << 8) | (pos.z << 4) | pos.x;
+  /**
+   * Getter.
+   * 
+   * @param sectionY The index of the section.
+   * @return The decoded section or <code>null</code> if the section does not
+   *         exist.
+   */
+  Section getDecodedSection(final int sectionY) {
+    final Section s = sectionCache.get(sectionY);
+    if(s != null) return s;
+    // missing sections are read as air without locking
+    if(sectionRecords[sectionY] == null) return null;
+    synchronized(this) {
+      Section res = sectionCache.get(sectionY);
+      if(res == null) {
+        final NBTCompound rec = sectionRecords[sectionY];
+        if(rec == null) return null;
+        res = Section.decode(rec, dataVersion);
+        sectionCache.set(sectionY, res);
+      }
+      return res;
+    }
   }
 
-  private final Map<NBTCompound, NBTByteArray> cacheBlocks =
-      new HashMap<NBTCompound, NBTByteArray>();
+  /** The size of a nibble array of a section. */
+  private static final int NIBBLES = Section.BLOCKS / 2;
 
-  private final Map<NBTCompound, NBTByteArray> cacheAddBlocks =
-      new HashMap<NBTCompound, NBTByteArray>();
+  /** Whether a section has been created by this chunk. */
+  private final boolean[] createdSections = new boolean[SECTIONS];
 
-  private int getBlockInSection(final NBTCompound section,
-      final InChunkPosition p, final int y) {
-    if(section == null) return Blocks.AIR.id;
-    final int pos = getBlockPositionInSection(p, y);
-    if(!cacheBlocks.containsKey(section)) {
-      cacheBlocks.put(section, (NBTByteArray) section.get("Blocks"));
-    }
-    final NBTByteArray blocks = cacheBlocks.get(section);
-    if(!cacheAddBlocks.containsKey(section)) {
-      cacheAddBlocks.put(section, (NBTByteArray) section.get("AddBlocks"));
+  /**
+   * Creates a section of air in the format of the chunk. The sky light of the
+   * new section is full.
+   * 
+   * @param sectionY The index of the section.
+   * @return The new section.
+   */
+  private synchronized Section createSection(final int sectionY) {
+    final Section cur = getDecodedSection(sectionY);
+    if(cur != null) return cur;
+    final List<NBTRecord> content = new ArrayList<NBTRecord>();
+    content.add(new NBTNumeric<Byte>(NBTType.BYTE, "Y", (byte) sectionY));
+    if(dataVersion < Section.FLATTENING) {
+      content.add(new NBTByteArray("Blocks", new byte[Section.BLOCKS]));
+      content.add(new NBTByteArray("Data", new byte[NIBBLES]));
     }
-    final NBTByteArray addBlocks = cacheAddBlocks.get(section);
-    return blocks.getAt(pos)
-        + (addBlocks != null ? (addBlocks.getAt(pos) << 8) : 0);
+    content.add(new NBTByteArray("BlockLight", new byte[NIBBLES]));
+    final byte[] sky = new byte[NIBBLES];
+    Arrays.fill(sky, (byte) 0xff);
+    content.add(new NBTByteArray("SkyLight", sky));
+    final NBTCompound rec = new NBTCompound(null, content);
+    sections.add(rec);
+    sectionRecords[sectionY] = rec;
+    createdSections[sectionY] = true;
+    final Section s = Section.decode(rec, dataVersion);
+    sectionCache.set(sectionY, s);
+    return s;
   }
 
-  private void setBlockInSection(final NBTCompound section,
-      final InChunkPosition p, final int y, final Blocks b) {
-    if(section == null) throw new NullPointerException(
-        "section may not be null");
-    final int pos = getBlockPositionInSection(p, y);
-    if(!cacheBlocks.containsKey(section)) {
-      cacheBlocks.put(section, (NBTByteArray) section.get("Blocks"));
+  /**
+   * Removes changed sections that have been created by this chunk and consist
+   * of air only. Sections read from the file are kept together with their
+   * light.
+   */
+  private void pruneSections() {
+    for(int sy = 0; sy < SECTIONS; ++sy) {
+      final Section s = sectionCache.get(sy);
+      if(!createdSections[sy] || s == null || !s.hasChanged()
+          || !s.isEmpty()) {
+        continue;
+      }
+      final NBTCompound rec = sectionRecords[sy];
+      for(int i = 0; i < sections.getLength(); ++i) {
+        if(sections.getAt(i) == rec) {
+          sections.remove(i);
+          break;
+        }
+      }
+      sectionRecords[sy] = null;
+      sectionCache.set(sy, null);
+      createdSections[sy] = false;
     }
-    final NBTByteArray blocks = cacheBlocks.get(section);
-    if(!cacheAddBlocks.containsKey(section)) {
-      cacheAddBlocks.put(section, (NBTByteArray) section.get("AddBlocks"));
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate.
+   * @param z The z coordinate within the chunk.
+   * @return The id of the block at the given position. Blocks outside of the
+   *         world or in missing sections are air.
+   */
+  public int getBlockId(final int x, final int y, final int z) {
+    if(y < 0 || y >= WORLD_MAX_Y) return Blocks.AIR.id;
+    final Section s = getDecodedSection(y >> 4);
+    if(s == null) return Blocks.AIR.id;
+    return s.getId(Section.index(x, y & 15, z));
+  }
+
+  /**
+   * Setter. Missing sections are created when needed.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate.
+   * @param z The z coordinate within the chunk.
+   * @param id The id of the block.
+   */
+  public void setBlockId(final int x, final int y, final int z, final int id) {
+    if(y < 0 || y >= WORLD_MAX_Y) throw new IllegalArgumentException(
+        "height out of range: " + y);
+    Section s = getDecodedSection(y >> 4);
+    if(s == null) {
+      if(id == Blocks.AIR.id) return;
+      s = createSection(y >> 4);
     }
-    final NBTByteArray addBlocks = cacheAddBlocks.get(section);
-    final int id = b.id;
-    if(id > 0xff && addBlocks == null) throw new UnsupportedOperationException(
-        "need to create an AddBlocks");
-    blocks.setAt(pos, (byte) id);
-    if(addBlocks != null) {
-      addBlocks.setAt(pos, (byte) (id >>> 8));
+    s.setId(Section.index(x, y & 15, z), id);
+    blockSet(x, y, z, id);
+  }
+
+  /**
+   * Setter. Missing sections are created when needed.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate.
+   * @param z The z coordinate within the chunk.
+   * @param id The id of the block.
+   * @param meta The metadata of the block.
+   */
+  public void setBlockId(final int x, final int y, final int z, final int id,
+      final int meta) {
+    setBlockId(x, y, z, id);
+    setData(x, y, z, meta);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate.
+   * @param z The z coordinate within the chunk.
+   * @return The metadata of the block at the given position.
+   */
+  public int getData(final int x, final int y, final int z) {
+    if(y < 0 || y >= WORLD_MAX_Y) return 0;
+    final Section s = getDecodedSection(y >> 4);
+    if(s == null) return 0;
+    return s.getData().get(Section.index(x, y & 15, z));
+  }
+
+  /**
+   * Setter. Missing sections are created when needed.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate.
+   * @param z The z coordinate within the chunk.
+   * @param meta The metadata of the block.
+   */
+  public void setData(final int x, final int y, final int z, final int meta) {
+    if(y < 0 || y >= WORLD_MAX_Y) throw new IllegalArgumentException(
+        "height out of range: " + y);
+    Section s = getDecodedSection(y >> 4);
+    if(s == null) {
+      if(meta == 0) return;
+      s = createSection(y >> 4);
     }
-    changeAt(p);
+    s.getData().set(Section.index(x, y & 15, z), meta);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate.
+   * @param z The z coordinate within the chunk.
+   * @return The light emitted by blocks at the given position.
+   */
+  public int getBlockLight(final int x, final int y, final int z) {
+    if(y < 0 || y >= WORLD_MAX_Y) return 0;
+    final Section s = getDecodedSection(y >> 4);
+    if(s == null) return 0;
+    return s.getBlockLight().get(Section.index(x, y & 15, z));
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate.
+   * @param z The z coordinate within the chunk.
+   * @return The light of the sky at the given position. Missing sections are
+   *         fully lit.
+   */
+  public int getSkyLight(final int x, final int y, final int z) {
+    if(y < 0) return 0;
+    if(y >= WORLD_MAX_Y) return 15;
+    final Section s = getDecodedSection(y >> 4);
+    if(s == null) return 15;
+    return s.getSkyLight().get(Section.index(x, y & 15, z));
   }
 
   /**
@@ -178,9 +396,7 @@ public class Chunk {
    * @return The block at the given position.
    */
   protected int getBlockFor(final Position3D pos) {
-    final int sectionY = pos.y / 16;
-    final int inSectionY = pos.y % 16;
-    return getBlockInSection(getSection(sectionY), pos, inSectionY);
+    return getBlockId(pos.x, pos.y, pos.z);
   }
 
   /**
@@ -190,12 +406,240 @@ public class Chunk {
    * @param b The block to set at the given position.
    */
   public void setBlock(final Position3D pos, final Blocks b) {
-    final int sectionY = pos.y / 16;
-    final int inSectionY = pos.y % 16;
-    final NBTCompound section = getSection(sectionY);
-    if(section == null) throw new UnsupportedOperationException(
-        "attempt to create a new section");
-    setBlockInSection(section, pos, inSectionY, b);
+    setBlockId(pos.x, pos.y, pos.z, b.id);
+  }
+
+  /**
+   * Sets the blocks of a range of a column within the existing sections.
+   * Missing sections are skipped and the metadata of the blocks is kept, so
+   * that the sections of the chunk stay the same.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @param minY The minimal height.
+   * @param maxY The maximal height, inclusive.
+   * @param id The id of the block.
+   */
+  public void setColumn(final int x, final int z, final int minY,
+      final int maxY, final int id) {
+    checkBox(x, z, x, z);
+    final int fromY = Math.max(minY, 0);
+    final int toY = Math.min(maxY, WORLD_MAX_Y - 1);
+    if(fromY > toY) return;
+    boolean any = false;
+    for(int sy = fromY >> 4; sy <= toY >> 4; ++sy) {
+      final Section s = getDecodedSection(sy);
+      if(s == null) {
+        continue;
+      }
+      final int lo = Math.max(fromY, sy << 4) & 15;
+      final int hi = Math.min(toY, (sy << 4) + 15) & 15;
+      for(int y = lo; y <= hi; ++y) {
+        s.setId(Section.index(x, y, z), id);
+      }
+      any = true;
+    }
+    if(any) {
+      boxChanged(x, z, x, z);
+    }
+  }
+
+  /**
+   * Fills a range of a column with a block. Missing sections are created when
+   * needed. The metadata of the blocks is reset.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @param minY The minimal height.
+   * @param maxY The maximal height, inclusive.
+   * @param id The id of the block.
+   */
+  public void fillColumn(final int x, final int z, final int minY,
+      final int maxY, final int id) {
+    fillBox(x, minY, z, x, maxY, z, id, 0);
+  }
+
+  /**
+   * Fills a range of a column with a block. Missing sections are created when
+   * needed.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @param minY The minimal height.
+   * @param maxY The maximal height, inclusive.
+   * @param id The id of the block.
+   * @param meta The metadata of the block.
+   */
+  public void fillColumn(final int x, final int z, final int minY,
+      final int maxY, final int id, final int meta) {
+    fillBox(x, minY, z, x, maxY, z, id, meta);
+  }
+
+  /**
+   * Fills a section with a block. A missing section is created when needed.
+   * The metadata of the blocks is reset.
+   * 
+   * @param sectionY The index of the section.
+   * @param id The id of the block.
+   */
+  public void fillSection(final int sectionY, final int id) {
+    fillSection(sectionY, id, 0);
+  }
+
+  /**
+   * Fills a section with a block. A missing section is created when needed.
+   * 
+   * @param sectionY The index of the section.
+   * @param id The id of the block.
+   * @param meta The metadata of the block.
+   */
+  public void fillSection(final int sectionY, final int id, final int meta) {
+    fillBox(0, sectionY << 4, 0, 15, (sectionY << 4) + 15, 15, id, meta);
+  }
+
+  /**
+   * Fills a box with a block. Missing sections are created when needed. The
+   * metadata of the blocks is reset.
+   * 
+   * @param minX The minimal x coordinate within the chunk.
+   * @param minY The minimal height.
+   * @param minZ The minimal z coordinate within the chunk.
+   * @param maxX The maximal x coordinate within the chunk, inclusive.
+   * @param maxY The maximal height, inclusive.
+   * @param maxZ The maximal z coordinate within the chunk, inclusive.
+   * @param id The id of the block.
+   */
+  public void fillBox(final int minX, final int minY, final int minZ,
+      final int maxX, final int maxY, final int maxZ, final int id) {
+    fillBox(minX, minY, minZ, maxX, maxY, maxZ, id, 0);
+  }
+
+  /**
+   * Fills a box with a block. Missing sections are created when needed.
+   * 
+   * @param minX The minimal x coordinate within the chunk.
+   * @param minY The minimal height.
+   * @param minZ The minimal z coordinate within the chunk.
+   * @param maxX The maximal x coordinate within the chunk, inclusive.
+   * @param maxY The maximal height, inclusive.
+   * @param maxZ The maximal z coordinate within the chunk, inclusive.
+   * @param id The id of the block.
+   * @param meta The metadata of the block.
+   */
+  public void fillBox(final int minX, final int minY, final int minZ,
+      final int maxX, final int maxY, final int maxZ, final int id,
+      final int meta) {
+    checkBox(minX, minZ, maxX, maxZ);
+    final int fromY = Math.max(minY, 0);
+    final int toY = Math.min(maxY, WORLD_MAX_Y - 1);
+    if(fromY > toY) return;
+    boolean any = false;
+    for(int sy = fromY >> 4; sy <= toY >> 4; ++sy) {
+      Section s = getDecodedSection(sy);
+      if(s == null) {
+        if(id == Blocks.AIR.id && meta == 0) {
+          continue;
+        }
+        s = createSection(sy);
+      }
+      final int lo = Math.max(fromY, sy << 4) & 15;
+      final int hi = Math.min(toY, (sy << 4) + 15) & 15;
+      if(minX == 0 && maxX == 15 && minZ == 0 && maxZ == 15) {
+        // whole layers are contiguous
+        s.fill(Section.index(0, lo, 0), Section.index(15, hi, 15) + 1, id,
+            meta);
+      } else {
+        for(int y = lo; y <= hi; ++y) {
+          for(int z = minZ; z <= maxZ; ++z) {
+            s.fill(Section.index(minX, y, z), Section.index(maxX, y, z) + 1,
+                id, meta);
+          }
+        }
+      }
+      any = true;
+    }
+    if(any) {
+      boxChanged(minX, minZ, maxX, maxZ);
+    }
+  }
+
+  /**
+   * Replaces every block of a given id in a box. Missing sections are created
+   * when air is replaced. The metadata of the blocks is kept.
+   * 
+   * @param minX The minimal x coordinate within the chunk.
+   * @param minY The minimal height.
+   * @param minZ The minimal z coordinate within the chunk.
+   * @param maxX The maximal x coordinate within the chunk, inclusive.
+   * @param maxY The maximal height, inclusive.
+   * @param maxZ The maximal z coordinate within the chunk, inclusive.
+   * @param from The id of the blocks to replace.
+   * @param to The id of the new blocks.
+   * @return The number of replaced blocks.
+   */
+  public int replace(final int minX, final int minY, final int minZ,
+      final int maxX, final int maxY, final int maxZ, final int from,
+      final int to) {
+    checkBox(minX, minZ, maxX, maxZ);
+    if(from == to) return 0;
+    final int fromY = Math.max(minY, 0);
+    final int toY = Math.min(maxY, WORLD_MAX_Y - 1);
+    int res = 0;
+    for(int sy = fromY >> 4; sy <= toY >> 4; ++sy) {
+      Section s = getDecodedSection(sy);
+      if(s == null) {
+        if(from != Blocks.AIR.id) {
+          continue;
+        }
+        s = createSection(sy);
+      }
+      final int lo = Math.max(fromY, sy << 4) & 15;
+      final int hi = Math.min(toY, (sy << 4) + 15) & 15;
+      for(int y = lo; y <= hi; ++y) {
+        for(int z = minZ; z <= maxZ; ++z) {
+          res += s.replace(Section.index(minX, y, z),
+              Section.index(maxX, y, z) + 1, from, to);
+        }
+      }
+    }
+    if(res > 0) {
+      boxChanged(minX, minZ, maxX, maxZ);
+    }
+    return res;
+  }
+
+  /**
+   * Checks whether a box lies within a chunk.
+   * 
+   * @param minX The minimal x coordinate within the chunk.
+   * @param minZ The minimal z coordinate within the chunk.
+   * @param maxX The maximal x coordinate within the chunk, inclusive.
+   * @param maxZ The maximal z coordinate within the chunk, inclusive.
+   */
+  static void checkBox(final int minX, final int minZ,
+      final int maxX, final int maxZ) {
+    if(minX < 0 || maxX > 15 || minZ < 0 || maxZ > 15) throw new
+        IllegalArgumentException("box exceeds the chunk");
+  }
+
+  /**
+   * Writes changed sections back into the record of the chunk.
+   */
+  private void syncSections() {
+    for(int sy = 0; sy < SECTIONS; ++sy) {
+      final Section s = sectionCache.get(sy);
+      if(s != null) {
+        s.sync();
+      }
+    }
+  }
+
+  private boolean hasChangedSections() {
+    for(int sy = 0; sy < SECTIONS; ++sy) {
+      final Section s = sectionCache.get(sy);
+      if(s != null && s.hasChanged()) return true;
+    }
+    return false;
   }
 
   /**
@@ -216,15 +660,117 @@ public class Chunk {
    * @return The Position of the topmost non air block.
    */
   public Position3D getTopNonAirBlock(final InChunkPosition pos) {
-    int y = WORLD_MAX_Y;
-    while(hasBlockFor(y)) {
-      final Position3D res = new Position3D(pos, y);
-      if(getBlock(res) != Blocks.AIR) return res;
-      --y;
+    return new Position3D(pos, getTopBlockY(pos.x, pos.z));
+  }
+
+  /** Marks a column whose topmost block is not computed yet. */
+  private static final int UNKNOWN_TOP = Integer.MIN_VALUE;
+
+  /** The cached heights of the topmost non air blocks. */
+  private int[] tops;
+
+  /**
+   * Gets the height of the topmost non air block. The height is computed once
+   * per column and kept up to date by edits.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @return The height of the topmost non air block or <code>-1</code> if the
+   *         column consists of air only.
+   */
+  public int getTopBlockY(final int x, final int z) {
+    int[] t = tops;
+    if(t == null) {
+      t = new int[16 * 16];
+      Arrays.fill(t, UNKNOWN_TOP);
+      tops = t;
+    }
+    final int i = (z << 4) | x;
+    if(t[i] == UNKNOWN_TOP) {
+      t[i] = computeTopBlockY(x, z);
+    }
+    return t[i];
+  }
+
+  private int computeTopBlockY(final int x, final int z) {
+    final int bound = getHeightMapBound(x, z);
+    for(int sy = SECTIONS - 1; sy >= 0 && (sy << 4) + 15 > bound; --sy) {
+      final Section s = getDecodedSection(sy);
+      if(s == null) {
+        // missing sections are air
+        continue;
+      }
+      final int minY = Math.max(sy << 4, bound + 1);
+      for(int y = (sy << 4) + 15; y >= minY; --y) {
+        if(s.getId(Section.index(x, y & 15, z)) != Blocks.AIR.id) return y;
+      }
+    }
+    return bound;
+  }
+
+  /**
+   * Uses the height map to find a lower bound for the topmost non air block.
+   * The height map contains the lowest height where the sky light is not
+   * blocked. Transparent blocks like flowers may be placed above it so the
+   * value can only be a lower bound. The bound is checked against the blocks
+   * since the height map may be outdated.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @return A height with a non air block or <code>-1</code>.
+   */
+  private int getHeightMapBound(final int x, final int z) {
+    if(heightMap == null || heightMap.getLength() != 16 * 16) return -1;
+    final int h = heightMap.getAt((z << 4) | x);
+    if(h <= 0 || h > WORLD_MAX_Y) return -1;
+    return getBlockId(x, h - 1, z) != Blocks.AIR.id ? h - 1 : -1;
+  }
+
+  /**
+   * Invalidates the cached state of the columns of a box after a bulk change.
+   * 
+   * @param minX The minimal x coordinate within the chunk.
+   * @param minZ The minimal z coordinate within the chunk.
+   * @param maxX The maximal x coordinate within the chunk, inclusive.
+   * @param maxZ The maximal z coordinate within the chunk, inclusive.
+   */
+  private void boxChanged(final int minX, final int minZ, final int maxX,
+      final int maxZ) {
+    final int[] t = tops;
+    for(int z = minZ; z <= maxZ; ++z) {
+      for(int x = minX; x <= maxX; ++x) {
+        if(t != null) {
+          t[(z << 4) | x] = UNKNOWN_TOP;
+        }
+        changeAt(x, z);
+      }
+    }
+  }
+
+  /**
+   * Updates the cached state of a column after a block has been set.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The height.
+   * @param z The z coordinate within the chunk.
+   * @param id The new id of the block.
+   */
+  void blockSet(final int x, final int y, final int z, final int id) {
+    final int[] t = tops;
+    if(t != null) {
+      final int i = (z << 4) | x;
+      final int top = t[i];
+      if(top != UNKNOWN_TOP) {
+        if(id != Blocks.AIR.id) {
+          if(y > top) {
+            t[i] = y;
+          }
+        } else if(y == top) {
+          t[i] = UNKNOWN_TOP;
+        }
+      }
     }
-    // actually never really happens
-    // but when it does we return an air block
-    return new Position3D(pos, y);
+    changeAt(x, z);
   }
 
   /**
@@ -244,8 +790,7 @@ public class Chunk {
    * @return Whether there is a block at the given position that can be edited.
    */
   public boolean canEdit(final int y) {
-    final int sectionY = y / 16;
-    return hasBlockFor(y) && getSection(sectionY) != null;
+    return y >= 0 && y < WORLD_MAX_Y;
   }
 
   private static int getBiomePosition(final InChunkPosition pos) {
@@ -253,24 +798,92 @@ public class Chunk {
   }
 
   /**
-   * Gets the biome for the given position.
+   * Computes the index of a biome cell.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The height.
+   * @param z The z coordinate within the chunk.
+   * @return The index of the cell containing the block.
+   */
+  private static int getBiomeCell(final int x, final int y, final int z) {
+    return ((y >> 2) << 4) | ((z >> 2) << 2) | (x >> 2);
+  }
+
+  /**
+   * Gets the biome for the given position. Biomes stored in cells are taken
+   * from the cell containing the topmost block of the column.
    * 
    * @param pos The position.
-   * @return The biome id.
+   * @return The biome id or <code>-1</code> if the chunk has no biomes.
    */
   protected int getBiomeFor(final InChunkPosition pos) {
-    return getBiomesArray().getAt(getBiomePosition(pos));
+    final NBTRecord b = biomes;
+    if(b instanceof NBTByteArray) {
+      final NBTByteArray arr = (NBTByteArray) b;
+      final int i = getBiomePosition(pos);
+      return i < arr.getLength() ? arr.getAt(i) : -1;
+    }
+    if(!(b instanceof NBTIntArray)) return -1;
+    final NBTIntArray arr = (NBTIntArray) b;
+    if(arr.getLength() == CELLS) {
+      final int y = Math.max(getTopBlockY(pos.x, pos.z), 0);
+      return arr.getAt(getBiomeCell(pos.x, y, pos.z));
+    }
+    final int i = getBiomePosition(pos);
+    return i < arr.getLength() ? arr.getAt(i) : -1;
   }
 
   /**
-   * Setter.
+   * Setter. Biomes stored in cells are set for every cell above the column.
+   * A chunk without biomes gets the biome array of its data version with all
+   * other biomes unassigned.
    * 
    * @param pos The position.
    * @param biome Sets the biome at the given position.
    */
   public void setBiome(final InChunkPosition pos, final Biomes biome) {
-    getBiomesArray().setAt(getBiomePosition(pos), (byte) biome.id);
-    changeAt(pos);
+    if(biomes == null) {
+      biomes = createBiomes();
+      level.add(biomes);
+    }
+    if(biomes instanceof NBTByteArray) {
+      ((NBTByteArray) biomes).setAt(getBiomePosition(pos), (byte) biome.id);
+      changeAt(pos);
+      return;
+    }
+    final NBTIntArray arr = (NBTIntArray) biomes;
+    if(arr.getLength() != CELLS) {
+      arr.setAt(getBiomePosition(pos), biome.id);
+      changeAt(pos);
+      return;
+    }
+    for(int y = 0; y < WORLD_MAX_Y; y += 4) {
+      arr.setAt(getBiomeCell(pos.x, y, pos.z), biome.id);
+    }
+    // the cells cover the neighboring columns as well
+    final int cx = pos.x & ~3;
+    final int cz = pos.z & ~3;
+    for(int z = cz; z < cz + 4; ++z) {
+      for(int x = cx; x < cx + 4; ++x) {
+        changeAt(x, z);
+      }
+    }
+  }
+
+  /**
+   * Creates the biome array of the data version of the chunk.
+   * 
+   * @return The biome array.
+   */
+  private NBTRecord createBiomes() {
+    if(dataVersion < Section.FLATTENING) {
+      final byte[] arr = new byte[16 * 16];
+      Arrays.fill(arr, (byte) -1);
+      return new NBTByteArray("Biomes", arr);
+    }
+    final int[] arr = new int[dataVersion < BIOME_CELLS ? 16 * 16 : CELLS];
+    Arrays.fill(arr, -1);
+    return new NBTIntArray("Biomes", arr);
   }
 
   /**
@@ -283,31 +896,78 @@ public class Chunk {
     return Biomes.getBlockForId(getBiomeFor(pos));
   }
 
-  private boolean hasChanged;
+  /**
+   * Marks a column whose color is not computed yet. Computed colors are either
+   * opaque or fully transparent black so this value never occurs.
+   */
+  private static final int UNKNOWN_COLOR = 1;
+
+  /** The cached colors of the columns in ARGB. */
+  private final int[] colors = newUnknownColors();
+
+  private static int[] newUnknownColors() {
+    final int[] res = new int[16 * 16];
+    Arrays.fill(res, UNKNOWN_COLOR);
+    return res;
+  }
+
+  /**
+   * The columns that changed since the last call to
+   * {@link #takeChangedColumns(long[])}. Bit <code>(z &lt;&lt; 4) | x</code>
+   * stands for the column at <code>x</code> and <code>z</code>.
+   */
+  private final AtomicLongArray changedColumns = new AtomicLongArray(
+      COLUMN_MASK_LENGTH);
 
-  private final Color[][] colors = new Color[16][16];
+  /** The number of longs of a column mask. */
+  public static final int COLUMN_MASK_LENGTH = 16 * 16 / 64;
 
   /**
    * Flags a change in the column of the given position. The flag is removed by
-   * {@link #oneTimeHasChanged()}.
+   * {@link #takeChangedColumns(long[])}.
    * 
    * @param pos The position.
    */
   public void changeAt(final InChunkPosition pos) {
-    colors[pos.x][pos.z] = null;
-    hasChanged = true;
+    changeAt(pos.x, pos.z);
   }
 
   /**
-   * Checks whether the chunk has been changed and resets the change flag
-   * afterwards.
+   * Flags a change in the given column.
    * 
-   * @return Whether the chunk has been changed.
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
    */
-  public boolean oneTimeHasChanged() {
-    final boolean hc = hasChanged;
-    hasChanged = false;
-    return hc;
+  void changeAt(final int x, final int z) {
+    final int i = (z << 4) | x;
+    colors[i] = UNKNOWN_COLOR;
+    final int w = i >> 6;
+    final long bit = 1L << (i & 63);
+    for(;;) {
+      final long v = changedColumns.get(w);
+      if((v & bit) != 0 || changedColumns.compareAndSet(w, v, v | bit)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Gets the columns that changed since the last call and resets them.
+   * 
+   * @param mask An array of length {@link #COLUMN_MASK_LENGTH} that is filled
+   *          with the changed columns. Bit <code>(z &lt;&lt; 4) | x</code>
+   *          stands for the column at <code>x</code> and <code>z</code>.
+   * @return Whether any column has changed.
+   */
+  public boolean takeChangedColumns(final long[] mask) {
+    boolean res = false;
+    for(int w = 0; w < COLUMN_MASK_LENGTH; ++w) {
+      final long v = changedColumns.get(w) != 0 ? changedColumns.getAndSet(w,
+          0) : 0;
+      mask[w] = v;
+      res |= v != 0;
+    }
+    return res;
   }
 
   /**
@@ -317,32 +977,76 @@ public class Chunk {
    * @return Gets the color for the given column.
    */
   public Color getColorForColumn(final InChunkPosition pos) {
-    final int x = pos.x;
-    final int z = pos.z;
-    if(colors[x][z] == null) {
-      int y = 0;
-      Color res = new Color(0, true);
-      while(hasBlockFor(y)) {
-        final Blocks b =
-            Blocks.getBlockForId(getBlockFor(new Position3D(pos, y)));
-        res = combine(res, b.color);
-        ++y;
-      }
-      colors[x][z] = res;
+    return new Color(getArgbForColumn(pos.x, pos.z), true);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @return Gets the color for the given column in ARGB. The color is either
+   *         opaque or fully transparent when the column consists of air only.
+   */
+  public int getArgbForColumn(final int x, final int z) {
+    final int i = (z << 4) | x;
+    int res = colors[i];
+    if(res == UNKNOWN_COLOR) {
+      res = compositeColumn(x, z);
+      colors[i] = res;
     }
-    return colors[x][z];
+    return res;
   }
 
-  private static Color combine(final Color old, final Color add) {
-    final int alpha = add.getAlpha();
-    if(alpha == 255) return add;
-    if(alpha == 0) return old;
-    final double a = alpha / 255.0;
-    final double am = 1.0 - a;
-    final double r = old.getRed() * am + add.getRed() * a;
-    final double g = old.getGreen() * am + add.getGreen() * a;
-    final double b = old.getBlue() * am + add.getBlue() * a;
-    return new Color((int) r, (int) g, (int) b);
+  /** The weight of a fully visible block in the compositing. */
+  private static final int FULL = 1 << 16;
+
+  /**
+   * Composites the blocks of a column from the top down. Every translucent
+   * block reduces the visibility of the blocks below and the first opaque
+   * block ends the walk. Whatever is still visible below the last block is
+   * black.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param z The z coordinate within the chunk.
+   * @return The color in ARGB.
+   */
+  private int compositeColumn(final int x, final int z) {
+    final int top = getTopBlockY(x, z);
+    if(top < 0) return 0;
+    // the remaining visibility in 16.16 fixed point
+    int vis = FULL;
+    int r = 0;
+    int g = 0;
+    int b = 0;
+    for(int sy = top >> 4; sy >= 0 && vis > 0; --sy) {
+      final Section s = getDecodedSection(sy);
+      if(s == null) {
+        // missing sections are air
+        continue;
+      }
+      final int from = sy == top >> 4 ? top & 15 : 15;
+      for(int y = from; y >= 0; --y) {
+        final int argb = Blocks.getArgb(s.getId(Section.index(x, y, z)));
+        final int alpha = argb >>> 24;
+        if(alpha == 0) {
+          continue;
+        }
+        final int w = alpha == 255 ? vis : vis * alpha / 255;
+        r += w * ((argb >> 16) & 0xff);
+        g += w * ((argb >> 8) & 0xff);
+        b += w * (argb & 0xff);
+        vis -= w;
+        if(vis == 0) {
+          break;
+        }
+      }
+    }
+    // only invisible blocks
+    if(vis == FULL) return 0;
+    final int half = FULL >> 1;
+    return 0xff000000 | (((r + half) >>> 16) << 16)
+        | (((g + half) >>> 16) << 8) | ((b + half) >>> 16);
   }
 
   private final int xCache;
@@ -385,30 +1089,171 @@ public class Chunk {
     return getZPos() * 16;
   }
 
-  private boolean active = true;
+  /**
+   * The estimated overhead of a record in bytes.
+   */
+  private static final int RECORD_OVERHEAD = 64;
 
   /**
-   * Unloads the chunk and saves changes to the file.
+   * Getter.
+   * 
+   * @return The estimated memory used by the records of this chunk in bytes.
+   *         Shared arrays are not included. See {@link #getSharedArrays()}.
    */
-  public void unload() {
-    if(active) {
-      if(root.hasChanged()) {
-        try {
-          final MapReader r = MapReader.getForFile(file);
-          r.write(root, otherPos.x, otherPos.z);
-        } catch(final IOException e) {
-          e.printStackTrace();
+  public long getEstimatedSize() {
+    long res = getEstimatedSize(root);
+    for(final NBTCompound s : sectionRecords) {
+      if(s == null) {
+        continue;
+      }
+      if(dataVersion < Section.FLATTENING) {
+        final NBTRecord blocks = s.get("Blocks");
+        if(blocks instanceof NBTByteArray
+            && ((NBTByteArray) blocks).isShared()) {
+          // the decoded block ids are shared with the array
+          continue;
         }
+        // the decoded block ids
+        res += Section.BLOCKS * 2;
+      } else {
+        // the working copy of the packed block states
+        res += getEstimatedSize(s.get("BlockStates"));
       }
-      active = false;
     }
+    return res;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The shared arrays of the sections of this chunk with their
+   *         estimated memory in bytes. The decoded block ids of a shared block
+   *         array are accounted with the array.
+   */
+  Map<byte[], Long> getSharedArrays() {
+    final Map<byte[], Long> res = new IdentityHashMap<byte[], Long>();
+    for(final NBTCompound s : sections) {
+      final int size = s.size();
+      for(int i = 0; i < size; ++i) {
+        final NBTRecord rec = s.get(i);
+        if(!(rec instanceof NBTByteArray)) {
+          continue;
+        }
+        final NBTByteArray arr = (NBTByteArray) rec;
+        if(!arr.isShared()) {
+          continue;
+        }
+        long bytes = arr.getLength();
+        if(dataVersion < Section.FLATTENING
+            && "Blocks".equals(arr.getName())) {
+          // the decoded block ids
+          bytes += Section.BLOCKS * 2;
+        }
+        res.put(arr.share(), bytes);
+      }
+    }
+    return res;
+  }
+
+  private static long getEstimatedSize(final NBTRecord rec) {
+    long res = RECORD_OVERHEAD;
+    if(rec instanceof NBTByteArray) {
+      final NBTByteArray arr = (NBTByteArray) rec;
+      if(!arr.isShared()) {
+        // shared arrays are accounted once for all of their holders
+        res += arr.getLength();
+      }
+    } else if(rec instanceof NBTIntArray) {
+      res += ((NBTIntArray) rec).getLength() * 4L;
+    } else if(rec instanceof NBTLongArray) {
+      res += ((NBTLongArray) rec).getLength() * 8L;
+    } else if(rec instanceof NBTCompound) {
+      final NBTCompound comp = (NBTCompound) rec;
+      final int size = comp.size();
+      for(int i = 0; i < size; ++i) {
+        res += getEstimatedSize(comp.get(i));
+      }
+    } else if(rec instanceof NBTList) {
+      for(final NBTRecord r : (NBTList<?>) rec) {
+        res += getEstimatedSize(r);
+      }
+    }
+    return res;
+  }
+
+  private final AtomicInteger pins = new AtomicInteger();
+
+  /**
+   * Pins the chunk. Use {@link ChunkManager#pin(ChunkPosition)} to obtain a
+   * {@link ChunkPin}.
+   */
+  void pin() {
+    pins.incrementAndGet();
+  }
+
+  /**
+   * Releases a pin.
+   * 
+   * @return Whether the last pin was released.
+   */
+  boolean unpin() {
+    final int p = pins.decrementAndGet();
+    if(p < 0) throw new IllegalStateException("chunk was not pinned");
+    return p == 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the chunk is pinned.
+   */
+  public boolean isPinned() {
+    return pins.get() > 0;
+  }
+
+  private boolean active = true;
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the chunk has changes that are not saved yet.
+   */
+  public synchronized boolean needsSave() {
+    return active && (hasChangedSections() || root.hasChanged());
+  }
+
+  /**
+   * Saves changes to the file. The chunk stays usable afterwards. When the
+   * write fails the chunk keeps its changes and can be saved again.
+   * 
+   * @throws IOException When the chunk could not be written.
+   */
+  public synchronized void save() throws IOException {
+    if(!needsSave()) return;
+    pruneSections();
+    syncSections();
+    final MapReader r = MapReader.getForFile(file);
+    r.write(root, otherPos.x, otherPos.z);
+    root.resetChange();
+  }
+
+  /**
+   * Unloads the chunk and saves changes to the file.
+   */
+  public synchronized void unload() {
+    try {
+      save();
+    } catch(final IOException e) {
+      e.printStackTrace();
+    }
+    active = false;
   }
 
   /**
    * Makes the chunk unsaveable. All changes will be ignored when unloading the
    * chunk.
    */
-  public void noSave() {
+  public synchronized void noSave() {
     active = false;
   }
 
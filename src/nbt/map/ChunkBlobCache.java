@@ -0,0 +1,258 @@
+package nbt.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import nbt.map.pos.ChunkPosition;
+import nbt.read.NBTReader;
+import nbt.record.NBTCompound;
+import nbt.record.NBTRecord;
+import nbt.record.NBTType;
+import nbt.write.NBTWriter;
+
+/**
+ * The second tier of the chunk cache. Chunks evicted from the
+ * {@link ChunkCache} are kept as serialized blobs so that returning to an area
+ * only needs to parse the chunk again instead of reading it from the region
+ * file. The blobs are bounded by their own budget and the oldest blobs are
+ * dropped first.
+ * <p>
+ * The tier can be configured via system properties:
+ * <ul>
+ * <li><code>nbt.blob.mb</code> The budget in megabytes. Defaults to an eighth
+ * of the maximal heap size. A budget of 0 disables the tier.</li>
+ * <li><code>nbt.blob.raw</code> Stores the blobs uncompressed.</li>
+ * <li><code>nbt.blob.direct</code> Stores the blobs in direct buffers outside
+ * of the heap.</li>
+ * </ul>
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class ChunkBlobCache {
+
+  /**
+   * Getter.
+   * 
+   * @return The configured default budget in bytes.
+   */
+  public static long getDefaultBudget() {
+    final long mb = Long.getLong("nbt.blob.mb", -1L);
+    if(mb >= 0) return mb * 1024L * 1024L;
+    return Runtime.getRuntime().maxMemory() / 8;
+  }
+
+  /** The buffer size of the compression streams. */
+  private static final int BUFFER = 8192;
+
+  private final LinkedHashMap<ChunkPosition, ByteBuffer> blobs =
+      new LinkedHashMap<ChunkPosition, ByteBuffer>();
+
+  private final long budget;
+
+  private final boolean compress;
+
+  private final boolean direct;
+
+  private long size;
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * Creates a blob cache with the configured settings.
+   */
+  public ChunkBlobCache() {
+    this(getDefaultBudget(), !Boolean.getBoolean("nbt.blob.raw"),
+        Boolean.getBoolean("nbt.blob.direct"));
+  }
+
+  /**
+   * Creates a blob cache.
+   * 
+   * @param budget The budget in bytes.
+   * @param compress Whether the blobs are compressed.
+   * @param direct Whether the blobs are stored outside of the heap.
+   */
+  public ChunkBlobCache(final long budget, final boolean compress,
+      final boolean direct) {
+    this.budget = Math.max(budget, 0);
+    this.compress = compress;
+    this.direct = direct;
+  }
+
+  /**
+   * Stores a chunk. The chunk must not be changed while it is stored.
+   * 
+   * @param pos The position.
+   * @param root The record of the chunk.
+   */
+  public void put(final ChunkPosition pos, final NBTCompound root) {
+    if(budget == 0) return;
+    final ByteBuffer blob;
+    try {
+      blob = serialize(root);
+    } catch(final IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    if(blob.capacity() > budget) return;
+    synchronized(this) {
+      final ByteBuffer old = blobs.remove(pos);
+      if(old != null) {
+        size -= old.capacity();
+      }
+      blobs.put(pos, blob);
+      size += blob.capacity();
+      final Iterator<ByteBuffer> it = blobs.values().iterator();
+      while(size > budget && it.hasNext()) {
+        size -= it.next().capacity();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Removes a chunk and parses it.
+   * 
+   * @param pos The position.
+   * @return The record of the chunk or <code>null</code> if the chunk is not
+   *         stored.
+   */
+  public NBTCompound take(final ChunkPosition pos) {
+    final ByteBuffer blob;
+    synchronized(this) {
+      blob = blobs.remove(pos);
+      if(blob == null) {
+        ++misses;
+        return null;
+      }
+      size -= blob.capacity();
+      ++hits;
+    }
+    try {
+      return deserialize(blob);
+    } catch(final IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Removes a chunk without parsing it.
+   * 
+   * @param pos The position.
+   */
+  public synchronized void remove(final ChunkPosition pos) {
+    final ByteBuffer old = blobs.remove(pos);
+    if(old != null) {
+      size -= old.capacity();
+    }
+  }
+
+  /**
+   * Removes all chunks.
+   */
+  public synchronized void clear() {
+    blobs.clear();
+    size = 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of bytes currently stored.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  private ByteBuffer serialize(final NBTRecord root) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final Deflater deflater =
+        compress ? new Deflater(Deflater.BEST_SPEED) : null;
+    try {
+      final OutputStream out = compress ? new BufferedOutputStream(
+          new DeflaterOutputStream(bytes, deflater, BUFFER)) : bytes;
+      final NBTWriter w = new NBTWriter(out, false);
+      try {
+        w.write(root);
+      } finally {
+        w.close();
+      }
+    } finally {
+      if(deflater != null) {
+        deflater.end();
+      }
+    }
+    final byte[] arr = bytes.toByteArray();
+    if(!direct) return ByteBuffer.wrap(arr);
+    final ByteBuffer res = ByteBuffer.allocateDirect(arr.length);
+    res.put(arr);
+    res.flip();
+    return res;
+  }
+
+  private NBTCompound deserialize(final ByteBuffer blob) throws IOException {
+    final InputStream raw = new BlobInputStream(blob.duplicate());
+    final NBTReader r = new NBTReader(compress ? new BufferedInputStream(
+        new InflaterInputStream(raw), BUFFER) : raw, false);
+    try {
+      return r.read(NBTType.COMPOUND);
+    } finally {
+      r.close();
+    }
+  }
+
+  /**
+   * Reads the content of a buffer.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class BlobInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    BlobInputStream(final ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if(len == 0) return 0;
+      if(!buf.hasRemaining()) return -1;
+      final int n = Math.min(len, buf.remaining());
+      buf.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buf.remaining();
+    }
+
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "chunk blobs: " + blobs.size() + " chunks, " + (size >> 20)
+        + " of " + (budget >> 20) + " MB, " + hits + " hits, " + misses
+        + " misses";
+  }
+
+}
@@ -0,0 +1,312 @@
+package nbt.map;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nbt.map.pos.ChunkPosition;
+
+/**
+ * A cache of loaded chunks with an explicit memory budget. Every chunk is
+ * accounted with its estimated size. Arrays shared between chunks are
+ * accounted once as long as at least one cached chunk holds them. When the
+ * budget is exceeded the least recently visible chunks are evicted. Chunks
+ * that are currently visible or pinned are never evicted.
+ * <p>
+ * The budget can be configured via the system property
+ * <code>nbt.cache.mb</code>. It defaults to half of the maximal heap size.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class ChunkCache {
+
+  /**
+   * Getter.
+   * 
+   * @return The configured default budget in bytes.
+   */
+  public static long getDefaultBudget() {
+    final long mb = Long.getLong("nbt.cache.mb", -1L);
+    if(mb > 0) return mb * 1024L * 1024L;
+    return Runtime.getRuntime().maxMemory() / 2;
+  }
+
+  /**
+   * An entry of the cache.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Entry {
+
+    /** The chunk. */
+    final Chunk chunk;
+
+    /** The accounted size of the chunk without its shared arrays. */
+    final long size;
+
+    /** The shared arrays of the chunk with their sizes. */
+    final Map<byte[], Long> shared;
+
+    /** Whether the chunk is currently visible. */
+    boolean visible = true;
+
+    Entry(final Chunk chunk) {
+      this.chunk = chunk;
+      size = chunk.getEstimatedSize();
+      shared = chunk.getSharedArrays();
+    }
+
+  }
+
+  /**
+   * The holders of a shared array.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Holders {
+
+    /** The accounted size of the array. */
+    final long size;
+
+    /** The number of cached chunks holding the array. */
+    int count;
+
+    Holders(final long size) {
+      this.size = size;
+    }
+
+  }
+
+  /** The entries ordered from least to most recently visible. */
+  private final LinkedHashMap<ChunkPosition, Entry> entries =
+      new LinkedHashMap<ChunkPosition, Entry>();
+
+  /** The holders of the shared arrays of the cached chunks. */
+  private final Map<byte[], Holders> holders =
+      new IdentityHashMap<byte[], Holders>();
+
+  private long budget;
+
+  private long size;
+
+  /**
+   * Creates a chunk cache.
+   * 
+   * @param budget The memory budget in bytes.
+   */
+  public ChunkCache(final long budget) {
+    setBudget(budget);
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param budget The memory budget in bytes. Chunks exceeding the new budget
+   *          are evicted with the next call to {@link #evict()}.
+   */
+  public synchronized void setBudget(final long budget) {
+    if(budget <= 0) throw new IllegalArgumentException("budget: " + budget);
+    this.budget = budget;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The memory budget in bytes.
+   */
+  public synchronized long getBudget() {
+    return budget;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The estimated memory of all cached chunks in bytes.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Accounts a chunk that is added to the cache.
+   * 
+   * @param e The entry of the chunk.
+   */
+  private void acquire(final Entry e) {
+    size += e.size;
+    for(final Map.Entry<byte[], Long> arr : e.shared.entrySet()) {
+      Holders h = holders.get(arr.getKey());
+      if(h == null) {
+        h = new Holders(arr.getValue());
+        holders.put(arr.getKey(), h);
+        size += h.size;
+      }
+      ++h.count;
+    }
+  }
+
+  /**
+   * Releases the accounting of a chunk that is removed from the cache.
+   * 
+   * @param e The entry of the chunk.
+   */
+  private void release(final Entry e) {
+    size -= e.size;
+    for(final byte[] arr : e.shared.keySet()) {
+      final Holders h = holders.get(arr);
+      if(--h.count > 0) {
+        continue;
+      }
+      holders.remove(arr);
+      size -= h.size;
+    }
+  }
+
+  /**
+   * Adds a chunk to the cache. The chunk counts as most recently visible.
+   * 
+   * @param pos The position.
+   * @param chunk The chunk.
+   */
+  public synchronized void put(final ChunkPosition pos, final Chunk chunk) {
+    final Entry old = entries.remove(pos);
+    if(old != null) {
+      release(old);
+    }
+    final Entry e = new Entry(chunk);
+    entries.put(pos, e);
+    acquire(e);
+  }
+
+  /**
+   * Accounts a cached chunk again after it has been changed. Edits may create
+   * sections, copy shared arrays or widen palettes. The order of the cache is
+   * not changed.
+   * 
+   * @param pos The position.
+   * @param chunk The chunk. Nothing happens when another chunk is cached at
+   *          the position.
+   */
+  public synchronized void update(final ChunkPosition pos, final Chunk chunk) {
+    final Entry old = entries.get(pos);
+    if(old == null || old.chunk != chunk) return;
+    release(old);
+    final Entry e = new Entry(chunk);
+    e.visible = old.visible;
+    // replacing the value keeps the position in the order
+    entries.put(pos, e);
+    acquire(e);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param pos The position.
+   * @return The chunk at the given position or <code>null</code> if it is not
+   *         cached. The order of the cache is not changed.
+   */
+  public synchronized Chunk get(final ChunkPosition pos) {
+    final Entry e = entries.get(pos);
+    return e != null ? e.chunk : null;
+  }
+
+  /**
+   * Removes a chunk from the cache.
+   * 
+   * @param pos The position.
+   * @return The removed chunk or <code>null</code>.
+   */
+  public synchronized Chunk remove(final ChunkPosition pos) {
+    final Entry e = entries.remove(pos);
+    if(e == null) return null;
+    release(e);
+    return e.chunk;
+  }
+
+  /**
+   * Marks a chunk as visible. It becomes the most recently visible chunk.
+   * 
+   * @param pos The position.
+   */
+  public synchronized void touch(final ChunkPosition pos) {
+    final Entry e = entries.remove(pos);
+    if(e == null) return;
+    e.visible = true;
+    entries.put(pos, e);
+  }
+
+  /**
+   * Pins a cached chunk. Pinning and eviction are mutually exclusive so that a
+   * pinned chunk is guaranteed to stay in the cache.
+   * 
+   * @param pos The position.
+   * @return The pinned chunk or <code>null</code> if it is not cached.
+   */
+  public synchronized Chunk pin(final ChunkPosition pos) {
+    final Entry e = entries.get(pos);
+    if(e == null) return null;
+    e.chunk.pin();
+    return e.chunk;
+  }
+
+  /**
+   * Marks a chunk as not visible. It may be evicted from now on.
+   * 
+   * @param pos The position.
+   */
+  public synchronized void hide(final ChunkPosition pos) {
+    final Entry e = entries.get(pos);
+    if(e != null) {
+      e.visible = false;
+    }
+  }
+
+  /**
+   * Evicts the least recently visible chunks until the cache fits into its
+   * budget. Visible and pinned chunks are never evicted.
+   * 
+   * @return The evicted chunks.
+   */
+  public synchronized List<Chunk> evict() {
+    final List<Chunk> res = new ArrayList<Chunk>();
+    final Iterator<Entry> it = entries.values().iterator();
+    while(size > budget && it.hasNext()) {
+      final Entry e = it.next();
+      if(e.visible || e.chunk.isPinned()) {
+        continue;
+      }
+      it.remove();
+      release(e);
+      res.add(e.chunk);
+    }
+    return res;
+  }
+
+  /**
+   * Removes all chunks.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    holders.clear();
+    size = 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The positions of all cached chunks.
+   */
+  public synchronized ChunkPosition[] getPositions() {
+    return entries.keySet().toArray(new ChunkPosition[entries.size()]);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "chunk cache: " + entries.size() + " chunks, " + holders.size()
+        + " shared arrays, " + (size >> 20) + " of " + (budget >> 20) + " MB";
+  }
+
+}
@@ -0,0 +1,415 @@
+package nbt.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nbt.map.pos.ChunkInFilePosition;
+import nbt.map.pos.ChunkPosition;
+import nbt.read.MapReader;
+import net.minecraft.world.level.chunk.storage.RegionFile;
+
+/**
+ * The chunk index knows the position of every chunk in a folder of region
+ * files. The index is persisted in a compact binary file next to the region
+ * files so that reopening a world does not need to scan every region header.
+ * A region counts as current when the modification date and the length of
+ * its file match the index. Only the headers of other regions are read. Regions
+ * can also be rebuilt while the world is open via {@link #update(File)}.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class ChunkIndex {
+
+  /**
+   * The name of the index file in the region folder.
+   */
+  public static final String INDEX_FILE = ".nbt_index";
+
+  /** The magic number of the index file. */
+  private static final int MAGIC = 0x4e425449;
+
+  /** The version of the index file format. */
+  private static final int VERSION = 1;
+
+  /**
+   * An entry of the index.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  public static final class Entry {
+
+    /** The position of the chunk in the world. */
+    public final ChunkPosition pos;
+
+    /** The region file. */
+    public final File file;
+
+    /** The position of the chunk in the region file. */
+    public final ChunkInFilePosition inFilePos;
+
+    /** The raw sector offset from the region header. */
+    public final int offset;
+
+    /** The timestamp from the region header. */
+    public final int timestamp;
+
+    /**
+     * Creates an index entry.
+     * 
+     * @param pos The position of the chunk in the world.
+     * @param file The region file.
+     * @param inFilePos The position of the chunk in the region file.
+     * @param offset The raw sector offset.
+     * @param timestamp The timestamp.
+     */
+    public Entry(final ChunkPosition pos, final File file,
+        final ChunkInFilePosition inFilePos, final int offset,
+        final int timestamp) {
+      this.pos = pos;
+      this.file = file;
+      this.inFilePos = inFilePos;
+      this.offset = offset;
+      this.timestamp = timestamp;
+    }
+
+  }
+
+  /**
+   * The indexed state of a single region file.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Region {
+
+    /** The modification date of the file when it was indexed. */
+    final long lastModified;
+
+    /** The length of the file when it was indexed. */
+    final long length;
+
+    /** Whether the index of this region may be persisted. */
+    final boolean persistent;
+
+    /** The chunks in this region. */
+    final List<Entry> entries;
+
+    Region(final long lastModified, final long length,
+        final boolean persistent, final List<Entry> entries) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.persistent = persistent;
+      this.entries = entries;
+    }
+
+  }
+
+  private final File folder;
+
+  private File[] files;
+
+  private final Map<File, Region> regions;
+
+  private ChunkIndex(final File folder, final File[] files) {
+    this.folder = folder;
+    this.files = files;
+    regions = new HashMap<File, Region>();
+  }
+
+  /**
+   * Loads the index of the given folder. The persisted index is validated
+   * against the modification dates and lengths of the region files and only
+   * stale regions are rebuilt from their headers. When regions were rebuilt
+   * the persisted index is updated.
+   * 
+   * @param folder The folder containing the region files.
+   * @return The index.
+   */
+  public static ChunkIndex load(final File folder) {
+    final File[] files = folder.listFiles(new FileFilter() {
+
+      @Override
+      public boolean accept(final File f) {
+        return f.isFile()
+            && f.getName().endsWith(RegionFile.ANVIL_EXTENSION);
+      }
+
+    });
+    final ChunkIndex index = new ChunkIndex(folder,
+        files != null ? files : new File[0]);
+    final Map<String, Region> persisted = index.readIndexFile();
+    int stale = 0;
+    for(final File f : index.files) {
+      final Region old = persisted.get(f.getName());
+      if(isCurrent(old, f)) {
+        index.regions.put(f, old);
+        continue;
+      }
+      index.regions.put(f, buildRegion(f));
+      ++stale;
+    }
+    System.out.println("Index: " + (index.files.length - stale) + " of "
+        + index.files.length + " regions up to date");
+    if(stale > 0 || persisted.size() != index.files.length) {
+      index.writeIndexFile();
+    }
+    return index;
+  }
+
+  /**
+   * Checks whether the index of a region still matches its file by the
+   * modification date and the length of the file. The header is not read.
+   * 
+   * @param r The indexed region or <code>null</code>.
+   * @param f The region file.
+   * @return Whether the region does not need to be rebuilt.
+   */
+  private static boolean isCurrent(final Region r, final File f) {
+    return r != null && r.lastModified == f.lastModified()
+        && r.length == f.length();
+  }
+
+  /**
+   * Checks whether two indices of a region contain the same chunks at the same
+   * offsets with the same timestamps.
+   * 
+   * @param a The one region.
+   * @param b The other region.
+   * @return Whether both regions contain the same chunks.
+   */
+  private static boolean sameEntries(final Region a, final Region b) {
+    if(a.entries.size() != b.entries.size()) return false;
+    final Map<Integer, Entry> known = new HashMap<Integer, Entry>();
+    for(final Entry e : a.entries) {
+      known.put(e.inFilePos.z * 32 + e.inFilePos.x, e);
+    }
+    for(final Entry e : b.entries) {
+      final Entry o = known.get(e.inFilePos.z * 32 + e.inFilePos.x);
+      if(o == null || o.offset != e.offset
+          || o.timestamp != e.timestamp) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Builds the index of a region by reading its header.
+   * 
+   * @param f The region file.
+   * @return The region.
+   */
+  private static Region buildRegion(final File f) {
+    final long lastModified = f.lastModified();
+    final long length = f.length();
+    final int[] offsets = new int[RegionFile.CHUNKS];
+    final int[] timestamps = new int[RegionFile.CHUNKS];
+    try {
+      RegionFile.readHeader(f, offsets, timestamps);
+    } catch(final IOException e) {
+      e.printStackTrace();
+      return new Region(lastModified, length, false,
+          Collections.<Entry> emptyList());
+    }
+    final int[] rp = MapReader.getRegionPosition(f);
+    final List<Entry> entries = new ArrayList<Entry>();
+    for(int i = 0; i < RegionFile.CHUNKS; ++i) {
+      if(offsets[i] == 0) {
+        continue;
+      }
+      final ChunkInFilePosition p = new ChunkInFilePosition(i % 32, i / 32);
+      final ChunkPosition pos = rp != null
+          ? getChunkPosition(rp[0], rp[1], i)
+          : MapReader.getForFile(f).getChunkPosition(p);
+      if(pos == null) {
+        continue;
+      }
+      entries.add(new Entry(pos, f, p, offsets[i], timestamps[i]));
+    }
+    return new Region(lastModified, length, rp != null, entries);
+  }
+
+  private static ChunkPosition getChunkPosition(final int regionX,
+      final int regionZ, final int i) {
+    return new ChunkPosition((regionX * 32 + i % 32) * 16,
+        (regionZ * 32 + i / 32) * 16);
+  }
+
+  private File getIndexFile() {
+    return new File(folder, INDEX_FILE);
+  }
+
+  private Map<String, Region> readIndexFile() {
+    final Map<String, Region> res = new HashMap<String, Region>();
+    final File idx = getIndexFile();
+    if(!idx.exists()) return res;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(idx)));
+      try {
+        if(in.readInt() != MAGIC || in.readInt() != VERSION) return res;
+        final int numRegions = in.readInt();
+        for(int r = 0; r < numRegions; ++r) {
+          final String name = in.readUTF();
+          final long lastModified = in.readLong();
+          final long length = in.readLong();
+          final int count = in.readShort() & 0xffff;
+          final File f = new File(folder, name);
+          final int[] rp = MapReader.getRegionPosition(f);
+          final List<Entry> entries = new ArrayList<Entry>(count);
+          for(int c = 0; c < count; ++c) {
+            final int i = in.readShort();
+            final int offset = in.readInt();
+            final int timestamp = in.readInt();
+            if(rp == null) {
+              continue;
+            }
+            entries.add(new Entry(getChunkPosition(rp[0], rp[1], i), f,
+                new ChunkInFilePosition(i % 32, i / 32), offset, timestamp));
+          }
+          if(rp != null) {
+            res.put(name, new Region(lastModified, length, true, entries));
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch(final IOException e) {
+      System.err.println("ignoring corrupt index " + idx + ": " + e);
+      res.clear();
+    }
+    return res;
+  }
+
+  /**
+   * Rebuilds the index of a region file when its header has changed since it
+   * was indexed. The header is read even when the modification date and the
+   * length of the file are unchanged since the modification date has only a
+   * coarse resolution on some file systems. Unknown region files are added to
+   * the index. The persisted index is updated accordingly.
+   * 
+   * @param regionFile The region file.
+   * @return The new chunks of the region or <code>null</code> if the region
+   *         file has not been modified.
+   */
+  public synchronized List<Entry> update(final File regionFile) {
+    if(!regionFile.isFile()) return null;
+    final Region old = regions.get(regionFile);
+    final Region r = buildRegion(regionFile);
+    if(old != null && sameEntries(old, r)) {
+      if(!isCurrent(old, regionFile)) {
+        // only the modification date or the length has changed
+        regions.put(regionFile, r);
+        writeIndexFile();
+      }
+      return null;
+    }
+    if(old == null) {
+      final File[] tmp = new File[files.length + 1];
+      System.arraycopy(files, 0, tmp, 0, files.length);
+      tmp[files.length] = regionFile;
+      files = tmp;
+    }
+    regions.put(regionFile, r);
+    writeIndexFile();
+    return Collections.unmodifiableList(r.entries);
+  }
+
+  private void writeIndexFile() {
+    final File idx = getIndexFile();
+    final File tmp = new File(folder, INDEX_FILE + ".tmp");
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        int numRegions = 0;
+        for(final Region r : regions.values()) {
+          if(r.persistent) {
+            ++numRegions;
+          }
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numRegions);
+        for(final File f : files) {
+          final Region r = regions.get(f);
+          if(!r.persistent) {
+            continue;
+          }
+          out.writeUTF(f.getName());
+          out.writeLong(r.lastModified);
+          out.writeLong(r.length);
+          out.writeShort(r.entries.size());
+          for(final Entry e : r.entries) {
+            out.writeShort(e.inFilePos.x + e.inFilePos.z * 32);
+            out.writeInt(e.offset);
+            out.writeInt(e.timestamp);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if(idx.exists() && !idx.delete()) throw new IOException(
+          "could not replace " + idx);
+      if(!tmp.renameTo(idx)) throw new IOException("could not rename " + tmp);
+    } catch(final IOException e) {
+      // the index is only a cache -- the world is still usable
+      System.err.println("could not write index " + idx + ": " + e);
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The folder of the region files.
+   */
+  public File getFolder() {
+    return folder;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The region files ordered by their names ignoring the signs of
+   *         the region coordinates.
+   */
+  public synchronized File[] getRegionFiles() {
+    final File[] res = files.clone();
+    Arrays.sort(res, new Comparator<File>() {
+
+      @Override
+      public int compare(final File left, final File right) {
+        final String leftStr = left.getName().replace("-", "");
+        final String rightStr = right.getName().replace("-", "");
+        return leftStr.compareTo(rightStr);
+      }
+
+    });
+    return res;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param regionFile The region file.
+   * @return The chunks stored in the given region file.
+   */
+  public synchronized List<Entry> getEntries(final File regionFile) {
+    final Region r = regions.get(regionFile);
+    if(r == null) return Collections.emptyList();
+    return Collections.unmodifiableList(r.entries);
+  }
+
+}
@@ -1,41 +1,63 @@
 package nbt.map;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nbt.map.pos.ChunkInFilePosition;
 import nbt.map.pos.ChunkPosition;
 import nbt.map.pos.InChunkPosition;
 import nbt.read.MapReader;
+import nbt.read.ReadTicket;
+import nbt.record.NBTCompound;
 import net.minecraft.world.level.chunk.storage.RegionFile;
 
 /**
- * The chunk manager manages to load and unload chunks in a given folder.
+ * The chunk manager manages to load and unload chunks in a given folder. When
+ * a folder is set only the {@link ChunkIndex} is loaded. Chunks are read when
+ * they are requested via {@link #needsReload(ChunkPosition)}. The state of
+ * every chunk is held in a {@link ChunkTable}. Loaded chunks
+ * are kept in a {@link ChunkCache} with a fixed memory budget. When the budget
+ * is exceeded chunks that have not been visible for the longest time are
+ * unloaded and changed chunks are written back in the background. Unloaded
+ * chunks are kept in a {@link ChunkBlobCache} for a while so that they can be
+ * reloaded without reading the region file. Region files that are changed by
+ * other programs while the folder is open are detected by a
+ * {@link RegionWatcher} and only the changed chunks are reloaded.
  * 
  * @author Joschi <josua.krause@googlemail.com>
  */
 public class ChunkManager {
 
-  private final Map<ChunkPosition, Chunk> chunks;
+  private final ChunkCache cache;
 
-  private final Map<ChunkPosition, File> reload;
+  private final ChunkBlobCache blobs;
 
-  private final Map<ChunkPosition, ChunkInFilePosition> otherPos;
+  private final ChunkTable table;
 
-  private final Set<Chunk> mayUnload;
+  private final WriteBehindQueue writes;
 
   private final UpdateReceiver user;
 
-  private final Object reloaderLock = new Object();
+  private final WorkerPool pool;
+
+  /** The pool that relights the tiles of a light engine. */
+  private final WorkerPool lightPool;
+
+  /** Runs the light engines one after another in the background. */
+  private final ExecutorService relighter;
+
+  private final AtomicInteger reloaders = new AtomicInteger();
+
+  private volatile boolean disposed;
 
   /**
    * Creates a chunk manager.
@@ -45,15 +67,117 @@ public class ChunkManager {
   public ChunkManager(final UpdateReceiver user) {
     if(user == null) throw new NullPointerException("user");
     this.user = user;
-    chunks = new HashMap<ChunkPosition, Chunk>();
-    reload = new HashMap<ChunkPosition, File>();
-    otherPos = new HashMap<ChunkPosition, ChunkInFilePosition>();
-    mayUnload = new HashSet<Chunk>();
-    int numThreads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
-    System.out.println("Using " + numThreads + " chunk reloader");
-    while(--numThreads >= 0) {
-      startOneReloaderThread();
+    cache = new ChunkCache(ChunkCache.getDefaultBudget());
+    blobs = new ChunkBlobCache();
+    table = new ChunkTable();
+    pool = WorkerPool.acquireLoader();
+    lightPool = WorkerPool.acquireLight();
+    relighter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "relighter");
+        t.setDaemon(true);
+        return t;
+      }
+
+    });
+    writes = new WriteBehindQueue(pool, new WriteBehindQueue.Listener() {
+
+      @Override
+      public void chunkWritten(final Chunk chunk) {
+        final ChunkTable.Entry e = table.get(chunk.getPos());
+        if(e != null && e.getChunk() == chunk) {
+          e.markSaved(chunk);
+          return;
+        }
+        // the chunk has been unloaded and is now in sync with its file --
+        // a chunk that is loaded again may be changed after the write
+        if(e == null || e.getState() == ChunkTable.UNLOADED) {
+          storeBlob(chunk);
+        }
+      }
+
+    });
+  }
+
+  /**
+   * Disposes the chunk manager. Pending reloads are dropped, pending writes are
+   * finished and the loader pool is released. The manager must not be used
+   * afterwards.
+   */
+  public void dispose() {
+    if(disposed) return;
+    disposed = true;
+    if(iniLoader != null) {
+      iniLoader.interrupt();
+    }
+    setWatcher(null);
+    chunksToReload.clear();
+    synchronized(inFlight) {
+      for(final ReloadTicket t : inFlight.values()) {
+        t.cancel();
+      }
+    }
+    // relit chunks are written with the remaining chunks
+    relighter.shutdown();
+    try {
+      relighter.awaitTermination(1, TimeUnit.MINUTES);
+    } catch(final InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    final int lost = writes.close();
+    if(lost > 0) {
+      System.err.println(lost + " changed chunks could not be written yet");
+    }
+    lightPool.release();
+    pool.release();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The pool that loads the chunks.
+   */
+  public WorkerPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The cache of the loaded chunks.
+   */
+  public ChunkCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The cache of recently unloaded chunks.
+   */
+  public ChunkBlobCache getBlobCache() {
+    return blobs;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The store of shared section arrays or <code>null</code> if
+   *         sharing is disabled.
+   */
+  public SectionStore getSectionStore() {
+    return SectionStore.getInstance();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The queue that writes changed chunks.
+   */
+  public WriteBehindQueue getWriteQueue() {
+    return writes;
   }
 
   private Thread iniLoader;
@@ -91,114 +215,171 @@ public class ChunkManager {
   public void loadFolder(final File folder) {
     final Thread t = Thread.currentThread();
     if(t != iniLoader || t.isInterrupted()) return;
-    synchronized(chunks) {
-      chunks.clear();
-    }
+    cache.clear();
+    blobs.clear();
+    table.clear();
+    chunksToReload.clear();
     MapReader.clearCache();
-    final File[] files = folder.listFiles(new FileFilter() {
-
-      @Override
-      public boolean accept(final File f) {
-        return f.isFile()
-            && f.getName().endsWith(RegionFile.ANVIL_EXTENSION);
-      }
-
-    });
-    Arrays.sort(files, new Comparator<File>() {
-
-      @Override
-      public int compare(final File left, final File right) {
-        final String leftStr = left.getName().replace("-", "");
-        final String rightStr = right.getName().replace("-", "");
-        return leftStr.compareTo(rightStr);
-      }
+    final ChunkIndex index = ChunkIndex.load(folder);
+    this.index = index;
+    if(WATCH) {
+      setWatcher(RegionWatcher.watch(folder, new RegionWatcher.Listener() {
+
+        @Override
+        public void regionChanged(final File regionFile) {
+          reindexRegion(index, regionFile);
+        }
 
-    });
-    for(final File f : files) {
-      final MapReader r = MapReader.getForFile(f);
-      final List<ChunkInFilePosition> chunkList = r.getChunks();
-      for(final ChunkInFilePosition p : chunkList) {
+      }));
+    }
+    for(final File f : index.getRegionFiles()) {
+      for(final ChunkIndex.Entry e : index.getEntries(f)) {
         if(t != iniLoader || t.isInterrupted()) return;
-        final Chunk chunk = new Chunk(r.read(p), f, p);
-        unloadChunk(chunk);
+        table.add(e.pos, e.file, e.inFilePos);
       }
       user.somethingChanged();
     }
   }
 
   /**
-   * Unloads all chunks that are not visible without allocating much memory.
+   * Whether region files are watched for external changes. Can be disabled via
+   * the system property <code>nbt.watch</code>.
    */
-  public void unloadAllowed() {
-    for(;;) {
-      // allocating no more memory but avoiding
-      // concurrent modification exception
-      final Chunk c;
-      synchronized(mayUnload) {
-        final Iterator<Chunk> it = mayUnload.iterator();
-        if(!it.hasNext()) {
-          break;
-        }
-        c = it.next();
-        it.remove();
-      }
-      unloadChunk(c);
+  private static final boolean WATCH = Boolean.parseBoolean(
+      System.getProperty("nbt.watch", "true"));
+
+  private volatile ChunkIndex index;
+
+  private RegionWatcher watcher;
+
+  private synchronized void setWatcher(final RegionWatcher w) {
+    if(watcher != null) {
+      watcher.close();
+    }
+    watcher = w;
+    // the folder may have been loaded after disposing
+    if(disposed && watcher != null) {
+      watcher.close();
+      watcher = null;
     }
   }
 
   /**
-   * Unloads a chunk. The chunk is saved, when it has been changed.
+   * Updates the index of a region file that has been changed by another
+   * program. Events caused by the writes of this manager are ignored without
+   * reading the file when the modification date and the length of the file
+   * are still the same as after the last write. Otherwise the header of the
+   * file is compared to the header known to the reader of the file. Only the
+   * chunks that have changed are unloaded. Chunks with unsaved edits are kept.
    * 
-   * @param chunk The chunk to unload.
+   * @param idx The index of the folder.
+   * @param regionFile The region file.
    */
-  public void unloadChunk(final Chunk chunk) {
-    final ChunkPosition pos = chunk.getPos();
-    synchronized(chunks) {
-      chunks.remove(pos);
+  void reindexRegion(final ChunkIndex idx, final File regionFile) {
+    if(disposed || idx != index) return;
+    final MapReader cached = MapReader.getCached(regionFile);
+    if(cached != null && cached.isUnchangedSinceWrite()) return;
+    final int[] offsets = new int[RegionFile.CHUNKS];
+    final int[] timestamps = new int[RegionFile.CHUNKS];
+    if(cached != null) {
+      cached.getHeader(offsets, timestamps);
+    } else {
+      for(final ChunkIndex.Entry e : idx.getEntries(regionFile)) {
+        final int i = e.inFilePos.x + e.inFilePos.z * 32;
+        offsets[i] = e.offset;
+        timestamps[i] = e.timestamp;
+      }
     }
-    synchronized(reload) {
-      reload.put(pos, chunk.getFile());
+    final List<ChunkIndex.Entry> entries = idx.update(regionFile);
+    if(entries == null) return;
+    final List<ChunkIndex.Entry> changed = new ArrayList<ChunkIndex.Entry>();
+    for(final ChunkIndex.Entry e : entries) {
+      final int i = e.inFilePos.x + e.inFilePos.z * 32;
+      if(offsets[i] != e.offset || timestamps[i] != e.timestamp) {
+        changed.add(e);
+      }
     }
-    synchronized(otherPos) {
-      otherPos.put(pos, chunk.getInFilePos());
+    if(changed.isEmpty()) return;
+    System.out.println("Reloading " + changed.size() + " changed chunks of "
+        + regionFile.getName());
+    // the reader knows only the old header
+    synchronized(inFlight) {
+      for(final ChunkPosition p : inFlight.keySet()) {
+        final ChunkTable.Entry e = table.get(p);
+        if(e != null && e.file.equals(regionFile)) {
+          inFlight.get(p).cancel();
+        }
+      }
     }
-    synchronized(mayUnload) {
-      mayUnload.remove(chunk);
+    MapReader.invalidate(regionFile);
+    for(final ChunkIndex.Entry e : changed) {
+      blobs.remove(e.pos);
+      final ChunkTable.Entry te = table.add(e.pos, e.file, e.inFilePos);
+      if(te.getState() == ChunkTable.MISSING) {
+        te.reset();
+        continue;
+      }
+      final Chunk c = te.getChunk();
+      if(c == null) {
+        continue;
+      }
+      if(c.needsSave() || writes.get(e.file, e.pos) != null) {
+        System.err.println("keeping edited chunk " + e.pos
+            + " that was changed externally");
+        continue;
+      }
+      cache.remove(e.pos);
+      markUnloaded(c);
     }
-    // writes the chunk if changed
-    chunk.unload();
+    user.somethingChanged();
   }
 
   /**
-   * The free to max memory ratio where a {@link OutOfMemoryError} will be
-   * thrown.
+   * Unloads a chunk. The chunk is saved in the background, when it has been
+   * changed.
+   * 
+   * @param chunk The chunk to unload.
    */
-  public static final double MEM_RATIO = 0.2;
+  public void unloadChunk(final Chunk chunk) {
+    cache.remove(chunk.getPos());
+    markUnloaded(chunk);
+    if(chunk.needsSave()) {
+      writes.enqueue(chunk);
+    }
+  }
+
+  private void markUnloaded(final Chunk chunk) {
+    final ChunkTable.Entry e =
+        table.add(chunk.getPos(), chunk.getFile(), chunk.getInFilePos());
+    if(e.getChunk() == chunk) {
+      e.unloaded();
+    }
+    user.chunkUnloaded(chunk);
+  }
 
   /**
-   * A token error to identify the early thrown out of memory error to avoid a
-   * real {@link OutOfMemoryError}.
+   * Evicts chunks until the cache fits into its budget. Changed chunks are
+   * written back by the {@link WriteBehindQueue}. Until the write has finished
+   * a reload of the chunk reuses the evicted instance. Unchanged chunks are
+   * moved to the blob cache.
    */
-  private static final OutOfMemoryError OWN_MEM = new OutOfMemoryError() {
-
-    private static final long serialVersionUID = 4681032151041986450L;
-
-    @Override
-    public synchronized Throwable fillInStackTrace() {
-      return this;
+  private void evict() {
+    final List<Chunk> evicted = cache.evict();
+    for(final Chunk chunk : evicted) {
+      markUnloaded(chunk);
+      if(chunk.needsSave()) {
+        writes.enqueue(chunk);
+      } else {
+        storeBlob(chunk);
+      }
     }
+  }
 
-  };
-
-  private static volatile boolean beFriendly;
-
-  private static void checkHeapStatus() {
-    if(beFriendly) return;
-    final Runtime r = Runtime.getRuntime();
-    final long free = r.freeMemory();
-    final long max = r.maxMemory();
-    final double ratio = (double) free / (double) max;
-    if(ratio <= MEM_RATIO) throw OWN_MEM;
+  private void storeBlob(final Chunk chunk) {
+    synchronized(chunk) {
+      if(chunk.needsSave()) return;
+      blobs.put(chunk.getPos(), chunk.getRoot());
+    }
   }
 
   /**
@@ -207,99 +388,136 @@ public class ChunkManager {
    * @param pos The position of the chunk.
    */
   protected void reloadChunk(final ChunkPosition pos) {
-    boolean end = false;
-    do {
-      try {
-        checkHeapStatus();
-        final File f;
-        synchronized(reload) {
-          f = reload.get(pos);
-        }
-        if(f == null) return;
-        final ChunkInFilePosition op;
-        synchronized(otherPos) {
-          op = otherPos.get(pos);
-        }
-        final MapReader r = MapReader.getForFile(f);
-        final Chunk chunk = new Chunk(r.read(op), f, op);
-        synchronized(chunks) {
-          chunks.put(pos, chunk);
-        }
-        synchronized(reload) {
-          reload.remove(pos);
-        }
-        synchronized(otherPos) {
-          otherPos.remove(pos);
-        }
-        end = true;
-      } catch(final OutOfMemoryError e) {
-        boolean canUnload;
-        synchronized(mayUnload) {
-          canUnload = !mayUnload.isEmpty();
-        }
-        if(canUnload) {
-          beFriendly = false;
-          user.memoryPanic();
-        } else if(e == OWN_MEM) {
-          beFriendly = true;
-        } else throw new Error(e);
+    final ReloadTicket ticket = new ReloadTicket(generation);
+    synchronized(inFlight) {
+      inFlight.put(pos, ticket);
+    }
+    try {
+      reloadChunk(pos, ticket);
+    } finally {
+      synchronized(inFlight) {
+        inFlight.remove(pos);
       }
-    } while(!end);
+    }
   }
 
+  private void reloadChunk(final ChunkPosition pos, final ReloadTicket ticket) {
+    final ChunkTable.Entry e = table.get(pos);
+    if(e == null || !e.startLoading()) return;
+    final File f = e.file;
+    final ChunkInFilePosition op = e.inFilePos;
+    Chunk chunk = writes.get(f, pos);
+    if(chunk != null) {
+      // a blob of the position would be older than the reused chunk
+      blobs.remove(pos);
+    } else {
+      final NBTCompound root = blobs.take(pos);
+      if(root != null) {
+        chunk = new Chunk(root, f, op);
+      }
+    }
+    if(chunk == null) {
+      final MapReader r = MapReader.getForFile(f);
+      final NBTCompound root = r.read(op, ticket);
+      // the chunk stays unloaded and may be requested again
+      if(ticket.isCancelled()) {
+        e.abortLoading();
+        return;
+      }
+      if(root != null) {
+        chunk = new Chunk(root, f, op);
+      } else {
+        System.err.println("could not read chunk " + pos + " in " + f);
+        e.failLoading();
+        return;
+      }
+    }
+    cache.put(pos, chunk);
+    e.loaded(chunk);
+    evict();
+  }
+
+  private final ReloadQueue chunksToReload = new ReloadQueue();
+
   /**
-   * Converts a collection of pairs to an array.
+   * A ticket for a reload in progress. The ticket remembers the viewport
+   * generation in which the chunk was requested the last time.
    * 
-   * @param entries The collection of pairs.
-   * @return The array.
+   * @author Joschi <josua.krause@googlemail.com>
    */
-  private static ChunkPosition[] asArrayPair(
-      final Collection<ChunkPosition> entries) {
-    return entries.toArray(new ChunkPosition[entries.size()]);
+  private static final class ReloadTicket extends ReadTicket {
+
+    /** The latest generation in which the chunk was requested. */
+    volatile int generation;
+
+    ReloadTicket(final int generation) {
+      this.generation = generation;
+    }
+
   }
 
-  private final Set<ChunkPosition> chunksToReload =
-      new HashSet<ChunkPosition>();
+  private final Map<ChunkPosition, ReloadTicket> inFlight =
+      new HashMap<ChunkPosition, ReloadTicket>();
+
+  private volatile int generation;
 
   /**
-   * The current number of active loader threads.
+   * Starts a new viewport generation. All chunks that are visible in the new
+   * viewport must be requested via {@link #needsReload(ChunkPosition)} before
+   * {@link #endViewport()} is called.
    */
-  protected int numberOfThreads;
+  public void beginViewport() {
+    ++generation;
+  }
 
   /**
-   * Starts another reloader thread. Note that these threads may not be stopped
-   * manually. So be careful how often you call this method.
+   * Ends the current viewport generation. Pending requests that have not been
+   * renewed since {@link #beginViewport()} are dropped and reloads in progress
+   * for those chunks are cancelled.
    */
-  private void startOneReloaderThread() {
-    final Thread t = new Thread() {
+  public void endViewport() {
+    final int gen = generation;
+    chunksToReload.removeOlderThan(gen);
+    synchronized(inFlight) {
+      for(final ReloadTicket t : inFlight.values()) {
+        if(t.generation != gen) {
+          t.cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes sure that enough reloader tasks are running to process the pending
+   * chunks. At most {@link WorkerPool#getParallelism()} reloader tasks run at
+   * the same time. A reloader task ends when there are no more chunks to
+   * reload.
+   */
+  private void scheduleReloader() {
+    for(;;) {
+      if(disposed || chunksToReload.isEmpty()) return;
+      final int num = reloaders.get();
+      if(num >= pool.getParallelism()) return;
+      if(reloaders.compareAndSet(num, num + 1)) {
+        break;
+      }
+    }
+    pool.execute(new Runnable() {
 
       @Override
       public void run() {
         try {
-          synchronized(ChunkManager.this) {
-            ++numberOfThreads;
-          }
-          while(!isInterrupted()) {
-            for(;;) {
-              if(hasContentToReload()) {
-                break;
-              }
-              waitForReloader();
-            }
-            reloadNext();
+          while(!disposed && reloadNext()) {
+            // reload until the queue is empty
           }
-        } catch(final InterruptedException e) {
-          interrupt();
         } finally {
-          synchronized(ChunkManager.this) {
-            --numberOfThreads;
-          }
+          reloaders.decrementAndGet();
         }
+        // chunks may have been added after the last poll
+        scheduleReloader();
       }
 
-    };
-    t.setDaemon(true);
-    t.start();
+    });
   }
 
   /**
@@ -308,54 +526,81 @@ public class ChunkManager {
    * @return Whether there are chunks waiting to be reloaded.
    */
   public boolean hasContentToReload() {
-    boolean b;
-    synchronized(chunksToReload) {
-      b = chunksToReload.isEmpty();
-    }
-    return !b;
+    return !chunksToReload.isEmpty();
   }
 
   /**
-   * Reloads the next chunk in the list.
+   * Reloads the chunk nearest to the focus.
+   * 
+   * @return Whether there was a chunk to reload.
    */
-  public void reloadNext() {
-    final ChunkPosition p;
-    synchronized(chunksToReload) {
-      final Iterator<ChunkPosition> it = chunksToReload.iterator();
-      if(!it.hasNext()) return;
-      p = it.next();
-      it.remove();
-    }
+  public boolean reloadNext() {
+    final ChunkPosition p = chunksToReload.poll();
+    if(p == null) return false;
     reloadChunk(p);
     user.somethingChanged();
+    return true;
   }
 
   /**
-   * Waits on the reloader monitor until chunks need to be reloaded.
+   * Sets the focus of the reloader. Chunks nearer to the focus are reloaded
+   * first. The pending chunks are re-ranked when the focus changes.
    * 
-   * @throws InterruptedException If the thread was interrupted.
+   * @param x The x coordinate in blocks.
+   * @param z The z coordinate in blocks.
    */
-  public void waitForReloader() throws InterruptedException {
-    synchronized(reloaderLock) {
-      reloaderLock.wait();
+  public void setFocus(final int x, final int z) {
+    chunksToReload.setFocus(x, z);
+  }
+
+  /**
+   * Pins a loaded chunk. The chunk is neither evicted nor written in the
+   * background until the pin is closed.
+   * 
+   * @param pos The position of the chunk.
+   * @return The pin or <code>null</code> if the chunk is not loaded.
+   */
+  public ChunkPin pin(final ChunkPosition pos) {
+    final Chunk c = cache.pin(pos);
+    return c != null ? new ChunkPin(this, c) : null;
+  }
+
+  /**
+   * Pins a chunk.
+   * 
+   * @param chunk The chunk.
+   * @return The pin or <code>null</code> if the chunk is not loaded anymore.
+   */
+  public ChunkPin pin(final Chunk chunk) {
+    final Chunk c = cache.pin(chunk.getPos());
+    if(c == null) return null;
+    if(c != chunk) {
+      unpin(c);
+      return null;
     }
+    return new ChunkPin(this, c);
   }
 
   /**
-   * Notifies that a chunk is waiting to be reloaded.
+   * Releases a pin. This method is called by {@link ChunkPin#close()}.
+   * 
+   * @param chunk The chunk.
    */
-  public void notifyReloader() {
-    synchronized(reloaderLock) {
-      reloaderLock.notifyAll();
+  void unpin(final Chunk chunk) {
+    if(chunk.unpin()) {
+      writes.release(chunk);
     }
   }
 
-  private final Set<Chunk> editedChunks = new HashSet<Chunk>();
+  /** The edited chunks and their pins. */
+  private final Map<Chunk, ChunkPin> editedChunks =
+      new HashMap<Chunk, ChunkPin>();
 
-  private boolean multi;
+  private volatile boolean multi;
 
   /**
-   * Edits the given chunk with a chunk editor.
+   * Edits the given chunk with a chunk editor. The chunk stays pinned until
+   * {@link #editFinished()}.
    * 
    * @param c The chunk.
    * @param p The position.
@@ -363,8 +608,95 @@ public class ChunkManager {
    */
   public void editChunk(final Chunk c, final InChunkPosition p,
       final ChunkEdit editor) {
-    editor.edit(c, p);
-    editedChunks.add(c);
+    synchronized(c) {
+      editor.edit(c, p);
+    }
+    edited(c);
+  }
+
+  /**
+   * Registers an edited chunk. The chunk stays pinned until
+   * {@link #editFinished()}.
+   * 
+   * @param c The chunk.
+   */
+  private void edited(final Chunk c) {
+    // the blob of the position does not contain the changes
+    blobs.remove(c.getPos());
+    final ChunkTable.Entry e = table.get(c.getPos());
+    if(e != null && e.getChunk() == c) {
+      e.markDirty();
+    }
+    synchronized(editedChunks) {
+      if(!editedChunks.containsKey(c)) {
+        // a chunk that is not loaded anymore is saved without a pin
+        editedChunks.put(c, pin(c));
+      }
+    }
+  }
+
+  /**
+   * Creates a light engine for the loaded chunks. Chunks that are not loaded
+   * are left out. Chunks whose light has changed are saved with the next call
+   * to {@link #editFinished()}. The tiles are relit by the light pool so that
+   * relighting does not wait for pending chunk loads.
+   * 
+   * @return The light engine.
+   */
+  public LightEngine createLightEngine() {
+    final Map<Chunk, ChunkPin> pins = new HashMap<Chunk, ChunkPin>();
+    return new LightEngine(new LightEngine.ChunkSource() {
+
+      @Override
+      public Chunk getChunk(final int chunkX, final int chunkZ) {
+        final ChunkPin p = pin(new ChunkPosition(chunkX << 4, chunkZ << 4));
+        if(p == null) return null;
+        synchronized(pins) {
+          pins.put(p.getChunk(), p);
+        }
+        return p.getChunk();
+      }
+
+      @Override
+      public void release(final Chunk chunk) {
+        final ChunkPin p;
+        synchronized(pins) {
+          p = pins.remove(chunk);
+        }
+        if(chunk.needsSave()) {
+          edited(chunk);
+        }
+        if(p != null) {
+          p.close();
+        }
+      }
+
+    }, lightPool);
+  }
+
+  /**
+   * Relights the edited columns of a light engine in the background. Light
+   * engines are run one after another. When the relighting has finished the
+   * relit chunks are saved via {@link #editFinished()} and the user is
+   * notified.
+   * 
+   * @param light The light engine created by {@link #createLightEngine()}.
+   */
+  public void relightLater(final LightEngine light) {
+    try {
+      relighter.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          light.relight();
+          editFinished();
+          user.somethingChanged();
+        }
+
+      });
+    } catch(final RejectedExecutionException e) {
+      // the manager is disposed
+    }
   }
 
   /**
@@ -383,39 +715,48 @@ public class ChunkManager {
 
   /**
    * Reports that the editing has finished and that the altered chunks should be
-   * saved.
+   * saved. The chunks stay loaded and are saved in the background. The edited
+   * chunks are accounted again in the cache since edits change their size.
    */
   public void editFinished() {
-    if(multi) return;
-    for(final Chunk c : editedChunks) {
-      unloadChunk(c);
+    final Map<Chunk, ChunkPin> edits;
+    synchronized(editedChunks) {
+      if(multi) return;
+      edits = new HashMap<Chunk, ChunkPin>(editedChunks);
+      editedChunks.clear();
     }
-    editedChunks.clear();
+    for(final Map.Entry<Chunk, ChunkPin> e : edits.entrySet()) {
+      final Chunk c = e.getKey();
+      cache.update(c.getPos(), c);
+      if(e.getValue() != null) {
+        e.getValue().close();
+      }
+      if(c.needsSave()) {
+        writes.enqueue(c);
+      }
+    }
+    evict();
   }
 
   /**
-   * Signals that a chunk may be unloaded.
+   * Signals that a chunk is not visible anymore and may be unloaded.
    * 
    * @param c The chunk.
    */
   public void mayUnload(final Chunk c) {
     if(c != null) {
-      synchronized(mayUnload) {
-        mayUnload.add(c);
-      }
+      cache.hide(c.getPos());
     }
   }
 
   /**
-   * Signals that a chunk must stay loaded.
+   * Signals that a chunk is visible and must stay loaded.
    * 
    * @param c The chunk.
    */
   public void stayLoaded(final Chunk c) {
     if(c != null) {
-      synchronized(mayUnload) {
-        mayUnload.remove(c);
-      }
+      cache.touch(c.getPos());
     }
   }
 
@@ -426,11 +767,8 @@ public class ChunkManager {
    * @return The chunk at the given position.
    */
   public Chunk getChunk(final ChunkPosition pos) {
-    Chunk c;
-    synchronized(chunks) {
-      c = chunks.get(pos);
-    }
-    return c;
+    final ChunkTable.Entry e = table.get(pos);
+    return e != null ? e.getChunk() : null;
   }
 
   /**
@@ -439,10 +777,138 @@ public class ChunkManager {
    * @param pos The position of the chunk.
    */
   public void needsReload(final ChunkPosition pos) {
-    synchronized(chunksToReload) {
-      chunksToReload.add(pos);
+    if(request(pos, 0)) {
+      scheduleReloader();
+    }
+  }
+
+  /**
+   * Requests a chunk in the current viewport generation.
+   * 
+   * @param pos The position of the chunk.
+   * @param bias The bias of the request in the reload queue.
+   * @return Whether the chunk was added to the reload queue.
+   */
+  private boolean request(final ChunkPosition pos, final long bias) {
+    final int gen = generation;
+    synchronized(inFlight) {
+      final ReloadTicket t = inFlight.get(pos);
+      if(t != null && !t.isCancelled()) {
+        t.generation = gen;
+        return false;
+      }
     }
-    notifyReloader();
+    return chunksToReload.add(pos, gen, bias);
+  }
+
+  /**
+   * The bias of prefetched chunks in the reload queue. Visible chunks are
+   * always loaded first.
+   */
+  private static final long PREFETCH_BIAS = 1L << 40;
+
+  /** The maximal number of chunks the prefetch ring is extended by. */
+  private static final int MAX_LEAD = 16;
+
+  /** The time in milliseconds after which the map is considered to be still. */
+  private static final double IDLE_MS = 1000;
+
+  /** The width of the prefetch ring in chunks. */
+  private final int prefetchRing = Math.max(
+      Integer.getInteger("nbt.prefetch.ring", 2), 0);
+
+  /** How many milliseconds of movement the prefetch ring anticipates. */
+  private final long prefetchLead = Math.max(
+      Long.getLong("nbt.prefetch.lead", 500L), 0L);
+
+  private long lastView;
+
+  private double lastCenterX;
+
+  private double lastCenterZ;
+
+  private double velX;
+
+  private double velZ;
+
+  /**
+   * Prefetches the chunks in a ring around the visible area. The velocity of
+   * the visible area is estimated from consecutive calls. The ring is extended
+   * in the direction of the movement and chunks ahead of the movement are
+   * loaded before chunks behind it. Prefetched chunks are loaded after all
+   * visible chunks. This method must be called between
+   * {@link #beginViewport()} and {@link #endViewport()}.
+   * <p>
+   * The ring can be configured via the system properties
+   * <code>nbt.prefetch.ring</code> (the width in chunks) and
+   * <code>nbt.prefetch.lead</code> (the anticipated time in milliseconds).
+   * 
+   * @param minX The minimal visible x coordinate in blocks.
+   * @param minZ The minimal visible z coordinate in blocks.
+   * @param maxX The maximal visible x coordinate in blocks.
+   * @param maxZ The maximal visible z coordinate in blocks.
+   */
+  public synchronized void prefetch(final int minX, final int minZ,
+      final int maxX, final int maxZ) {
+    final long now = System.nanoTime();
+    final double centerX = (minX + (double) maxX) * 0.5;
+    final double centerZ = (minZ + (double) maxZ) * 0.5;
+    if(lastView != 0) {
+      final double dt = (now - lastView) / 1e6;
+      if(dt > IDLE_MS) {
+        velX = 0;
+        velZ = 0;
+      } else if(dt > 0) {
+        // exponential smoothing of the velocity in blocks per millisecond
+        velX = (velX + (centerX - lastCenterX) / dt) * 0.5;
+        velZ = (velZ + (centerZ - lastCenterZ) / dt) * 0.5;
+      }
+    }
+    lastView = now;
+    lastCenterX = centerX;
+    lastCenterZ = centerZ;
+    if(prefetchRing == 0) return;
+    final int x0 = minX >> 4;
+    final int z0 = minZ >> 4;
+    final int x1 = maxX >> 4;
+    final int z1 = maxZ >> 4;
+    final int leadX = lead(velX);
+    final int leadZ = lead(velZ);
+    final int ex0 = x0 - prefetchRing + Math.min(leadX, 0);
+    final int ex1 = x1 + prefetchRing + Math.max(leadX, 0);
+    final int ez0 = z0 - prefetchRing + Math.min(leadZ, 0);
+    final int ez1 = z1 + prefetchRing + Math.max(leadZ, 0);
+    boolean added = false;
+    for(int x = ex0; x <= ex1; ++x) {
+      final boolean inside = x >= x0 && x <= x1;
+      for(int z = ez0; z <= ez1; ++z) {
+        if(inside && z == z0) {
+          // skip the visible area
+          z = z1;
+          continue;
+        }
+        final ChunkTable.Entry e = table.get(x, z);
+        if(e == null) {
+          continue;
+        }
+        final int state = e.getState();
+        if(state != ChunkTable.UNLOADED && state != ChunkTable.LOADING) {
+          continue;
+        }
+        final double dx = x * 16 + 8 - centerX;
+        final double dz = z * 16 + 8 - centerZ;
+        final boolean behind = dx * velX + dz * velZ < 0;
+        added |= request(e.pos, behind ? 2 * PREFETCH_BIAS : PREFETCH_BIAS);
+      }
+    }
+    if(added) {
+      scheduleReloader();
+    }
+  }
+
+  private int lead(final double vel) {
+    final long chunks = Math.round(vel * prefetchLead / 16.0);
+    return (int) Math.max(-MAX_LEAD, Math.min(MAX_LEAD, chunks));
   }
 
   /**
@@ -451,11 +917,7 @@ public class ChunkManager {
    * @return All chunk positions that may be reloaded.
    */
   public ChunkPosition[] getReloadEntries() {
-    ChunkPosition[] reloadEntries;
-    synchronized(reload) {
-      reloadEntries = asArrayPair(reload.keySet());
-    }
-    return reloadEntries;
+    return table.getPositions(false);
   }
 
   /**
@@ -464,11 +926,7 @@ public class ChunkManager {
    * @return All chunks positions.
    */
   public ChunkPosition[] getChunkEntries() {
-    ChunkPosition[] chunkEntries;
-    synchronized(chunks) {
-      chunkEntries = asArrayPair(chunks.keySet());
-    }
-    return chunkEntries;
+    return table.getPositions(true);
   }
 
 }
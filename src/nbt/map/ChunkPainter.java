@@ -11,6 +11,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nbt.map.pos.ChunkPosition;
 import nbt.map.pos.InChunkPosition;
@@ -49,12 +50,19 @@ public class ChunkPainter {
 
   private final Map<Chunk, Image> biomeCache = new HashMap<Chunk, Image>();
 
-  private final Object drawLock = new Object();
-
   private final UpdateReceiver user;
 
+  private final WorkerPool pool;
+
+  private final AtomicInteger drawers = new AtomicInteger();
+
+  private volatile boolean disposed;
+
   private final Image loading;
 
+  /** The changed columns of the chunk that is drawn on the screen. */
+  private final long[] changed = new long[Chunk.COLUMN_MASK_LENGTH];
+
   /**
    * Creates a chunk painter.
    * 
@@ -65,26 +73,37 @@ public class ChunkPainter {
     this.user = user;
     this.scale = scale;
     loading = createLoadingImage();
-    int numThreads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
-    System.out.println("Using " + numThreads + " image loader");
-    while(--numThreads >= 0) {
-      startOneImageThread();
-    }
+    pool = WorkerPool.acquirePainter();
+  }
+
+  /**
+   * Disposes the painter. All images are cleared and the painter pool is
+   * released. The painter must not be used afterwards.
+   */
+  public void dispose() {
+    if(disposed) return;
+    disposed = true;
+    clearAll();
+    pool.release();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The pool that draws the chunk images.
+   */
+  public WorkerPool getPool() {
+    return pool;
   }
 
   private void drawChunk(final Chunk chunk) {
     final BufferedImage img =
         new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
-    final Graphics2D gi = (Graphics2D) img.getGraphics();
     for(int x = 0; x < 16; ++x) {
       for(int z = 0; z < 16; ++z) {
-        final Rectangle2D rect = new Rectangle2D.Double(x, z, 1, 1);
-        final InChunkPosition pos = new InChunkPosition(x, z);
-        gi.setColor(chunk.getColorForColumn(pos));
-        gi.fill(rect);
+        img.setRGB(x, z, chunk.getArgbForColumn(x, z));
       }
     }
-    gi.dispose();
     synchronized(imgCache) {
       if(imgCache.containsKey(chunk)) {
         imgCache.put(chunk, img);
@@ -111,44 +130,34 @@ public class ChunkPainter {
   }
 
   /**
-   * The current number of active painter threads.
+   * Makes sure that enough drawer tasks are running to process the pending
+   * chunks. A drawer task ends when there are no more chunks to draw.
    */
-  protected int numberOfThreads;
-
-  /**
-   * Starts another image thread. Note that these threads may not be stopped
-   * manually. So be careful how often you call this method.
-   */
-  private void startOneImageThread() {
-    final Thread t = new Thread() {
+  private void scheduleDrawer() {
+    for(;;) {
+      if(disposed || !hasPendingChunks()) return;
+      final int num = drawers.get();
+      if(num >= pool.getParallelism()) return;
+      if(drawers.compareAndSet(num, num + 1)) {
+        break;
+      }
+    }
+    pool.execute(new Runnable() {
 
       @Override
       public void run() {
         try {
-          synchronized(ChunkPainter.this) {
-            ++numberOfThreads;
+          while(!disposed && pollChunkAndDraw()) {
+            // draw until nothing is pending
           }
-          while(!isInterrupted()) {
-            for(;;) {
-              if(hasPendingChunks()) {
-                break;
-              }
-              waitOnDrawer();
-            }
-            pollChunkAndDraw();
-          }
-        } catch(final InterruptedException e) {
-          interrupt();
         } finally {
-          synchronized(ChunkPainter.this) {
-            --numberOfThreads;
-          }
+          drawers.decrementAndGet();
         }
+        // chunks may have been added after the last poll
+        scheduleDrawer();
       }
 
-    };
-    t.setDaemon(true);
-    t.start();
+    });
   }
 
   private ChunkPosition pos;
@@ -183,8 +192,10 @@ public class ChunkPainter {
 
   /**
    * Polls the next chunk and draws its offscreen image.
+   * 
+   * @return Whether something has been drawn.
    */
-  public void pollChunkAndDraw() {
+  public boolean pollChunkAndDraw() {
     Chunk c;
     synchronized(chunksToDraw) {
       c = getBestChunk(chunksToDraw.iterator(), pos);
@@ -199,7 +210,7 @@ public class ChunkPainter {
     synchronized(biomesToDraw) {
       b = getBestChunk(biomesToDraw.iterator(), pos);
       if(b != null) {
-        biomesToDraw.remove(c);
+        biomesToDraw.remove(b);
       }
     }
     if(b != null) {
@@ -207,7 +218,9 @@ public class ChunkPainter {
     }
     if(c != null || b != null) {
       somethingChanged();
+      return true;
     }
+    return false;
   }
 
   /**
@@ -229,27 +242,32 @@ public class ChunkPainter {
   }
 
   /**
-   * Waits for chunks to draw.
+   * Updates the changed columns of a chunk image in place.
    * 
-   * @throws InterruptedException If the thread is interrupted.
-   */
-  public void waitOnDrawer() throws InterruptedException {
-    synchronized(drawLock) {
-      drawLock.wait();
-    }
-  }
-
-  /**
-   * Notifies that there are chunks to draw.
+   * @param img The image.
+   * @param chunk The chunk.
+   * @param mask The changed columns.
+   * @param biomes Whether the image shows the biomes.
    */
-  public void notifyDrawer() {
-    synchronized(drawLock) {
-      drawLock.notifyAll();
+  private static void updateColumns(final BufferedImage img,
+      final Chunk chunk, final long[] mask, final boolean biomes) {
+    for(int w = 0; w < mask.length; ++w) {
+      long bits = mask[w];
+      while(bits != 0) {
+        final int i = (w << 6) | Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+        final int x = i & 15;
+        final int z = i >> 4;
+        img.setRGB(x, z, biomes ? chunk.getBiome(new InChunkPosition(x, z))
+            .color.getRGB() : chunk.getArgbForColumn(x, z));
+      }
     }
   }
 
   /**
-   * Draws a chunk on the screen.
+   * Draws a chunk on the screen. Changed columns of a chunk that is already
+   * drawn are updated in the existing image. This method must be called by
+   * the painting thread only.
    * 
    * @param g The graphics device.
    * @param chunk The chunk.
@@ -259,11 +277,22 @@ public class ChunkPainter {
       g.drawImage(loading, 0, 0, null);
       return;
     }
-    boolean contains;
+    final Image cur;
     synchronized(imgCache) {
-      contains = imgCache.containsKey(chunk);
+      cur = imgCache.get(chunk);
     }
-    if(!contains || chunk.oneTimeHasChanged()) {
+    final boolean hasChanged = chunk.takeChangedColumns(changed);
+    if(cur != null && cur != loading && hasChanged) {
+      updateColumns((BufferedImage) cur, chunk, changed, false);
+      final Image biome;
+      synchronized(biomeCache) {
+        biome = biomeCache.get(chunk);
+      }
+      if(biome != null) {
+        updateColumns((BufferedImage) biome, chunk, changed, true);
+      }
+    } else if(cur == null || (cur == loading && hasChanged)) {
+      // not drawn yet or the pending drawing may have missed the change
       synchronized(imgCache) {
         imgCache.put(chunk, loading);
       }
@@ -282,7 +311,7 @@ public class ChunkPainter {
           biomesToDraw.add(chunk);
         }
       }
-      notifyDrawer();
+      scheduleDrawer();
     }
     final Image img;
     synchronized(imgCache) {
@@ -301,7 +330,7 @@ public class ChunkPainter {
         synchronized(biomesToDraw) {
           biomesToDraw.add(chunk);
         }
-        notifyDrawer();
+        scheduleDrawer();
       }
     }
   }
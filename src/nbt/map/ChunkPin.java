@@ -0,0 +1,48 @@
+package nbt.map;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pin keeps a chunk loaded. A pinned chunk is neither evicted nor written in
+ * the background until all of its pins are closed. Pins are obtained via
+ * {@link ChunkManager#pin(nbt.map.pos.ChunkPosition)} and must be closed
+ * exactly once. Closing a pin multiple times has no effect.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class ChunkPin implements Closeable {
+
+  private final ChunkManager manager;
+
+  private final Chunk chunk;
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Creates a pin. The chunk must already be pinned.
+   * 
+   * @param manager The manager of the chunk.
+   * @param chunk The pinned chunk.
+   */
+  ChunkPin(final ChunkManager manager, final Chunk chunk) {
+    this.manager = manager;
+    this.chunk = chunk;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The pinned chunk.
+   */
+  public Chunk getChunk() {
+    return chunk;
+  }
+
+  @Override
+  public void close() {
+    if(!closed.compareAndSet(false, true)) return;
+    manager.unpin(chunk);
+  }
+
+}
@@ -0,0 +1,304 @@
+package nbt.map;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import nbt.map.pos.ChunkInFilePosition;
+import nbt.map.pos.ChunkPosition;
+
+/**
+ * A table of all chunks of a world. Every known chunk has an {@link Entry}
+ * holding its location and its state. The table is keyed by the packed chunk
+ * coordinates and uses open addressing. Entries are never removed so that
+ * lookups do not need any locks. Only adding entries is synchronized.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class ChunkTable {
+
+  /** The chunk is not loaded. */
+  public static final int UNLOADED = 0;
+
+  /** The chunk is being loaded. */
+  public static final int LOADING = 1;
+
+  /** The chunk is loaded. */
+  public static final int LOADED = 2;
+
+  /** The chunk is loaded and has changes that are not written yet. */
+  public static final int DIRTY = 3;
+
+  /** The chunk could not be read. */
+  public static final int MISSING = 4;
+
+  /**
+   * An entry of the table.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  public static final class Entry {
+
+    /** The position of the chunk in the world. */
+    public final ChunkPosition pos;
+
+    /** The region file. */
+    public final File file;
+
+    /** The position of the chunk in the region file. */
+    public final ChunkInFilePosition inFilePos;
+
+    /** The packed coordinates. */
+    final long key;
+
+    private final AtomicInteger state = new AtomicInteger(UNLOADED);
+
+    private volatile Chunk chunk;
+
+    Entry(final long key, final ChunkPosition pos, final File file,
+        final ChunkInFilePosition inFilePos) {
+      this.key = key;
+      this.pos = pos;
+      this.file = file;
+      this.inFilePos = inFilePos;
+    }
+
+    /**
+     * Getter.
+     * 
+     * @return The state of the chunk.
+     */
+    public int getState() {
+      return state.get();
+    }
+
+    /**
+     * Getter.
+     * 
+     * @return Whether the chunk is loaded.
+     */
+    public boolean isLoaded() {
+      final int s = state.get();
+      return s == LOADED || s == DIRTY;
+    }
+
+    /**
+     * Getter.
+     * 
+     * @return The loaded chunk or <code>null</code>.
+     */
+    public Chunk getChunk() {
+      return chunk;
+    }
+
+    /**
+     * Claims the chunk for loading. Only one thread can load a chunk at a time.
+     * 
+     * @return Whether the calling thread may load the chunk.
+     */
+    public boolean startLoading() {
+      return state.compareAndSet(UNLOADED, LOADING);
+    }
+
+    /**
+     * Releases the claim when the loading has been aborted.
+     */
+    public void abortLoading() {
+      state.compareAndSet(LOADING, UNLOADED);
+    }
+
+    /**
+     * Marks the chunk as unreadable.
+     */
+    public void failLoading() {
+      state.compareAndSet(LOADING, MISSING);
+    }
+
+    /**
+     * Allows an unreadable chunk to be loaded again.
+     */
+    public void reset() {
+      state.compareAndSet(MISSING, UNLOADED);
+    }
+
+    /**
+     * Sets the loaded chunk.
+     * 
+     * @param c The chunk.
+     */
+    public void loaded(final Chunk c) {
+      chunk = c;
+      state.set(c.needsSave() ? DIRTY : LOADED);
+    }
+
+    /**
+     * Removes the loaded chunk.
+     */
+    public void unloaded() {
+      chunk = null;
+      state.set(UNLOADED);
+    }
+
+    /**
+     * Marks the loaded chunk as changed.
+     */
+    public void markDirty() {
+      state.compareAndSet(LOADED, DIRTY);
+    }
+
+    /**
+     * Marks the chunk as written when it is still loaded and has no further
+     * changes.
+     * 
+     * @param c The written chunk.
+     */
+    public void markSaved(final Chunk c) {
+      if(chunk == c && !c.needsSave()) {
+        state.compareAndSet(DIRTY, LOADED);
+      }
+    }
+
+  }
+
+  /** The initial capacity. Must be a power of two. */
+  private static final int INITIAL_CAPACITY = 64;
+
+  private volatile AtomicReferenceArray<Entry> table =
+      new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+
+  private int size;
+
+  /**
+   * Packs chunk coordinates.
+   * 
+   * @param chunkX The x coordinate in chunks.
+   * @param chunkZ The z coordinate in chunks.
+   * @return The key.
+   */
+  private static long key(final int chunkX, final int chunkZ) {
+    return ((long) chunkX << 32) | (chunkZ & 0xffffffffL);
+  }
+
+  private static int hash(final long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param pos The position in blocks.
+   * @return The entry or <code>null</code> if the chunk is unknown.
+   */
+  public Entry get(final ChunkPosition pos) {
+    return get(pos.x >> 4, pos.z >> 4);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param chunkX The x coordinate in chunks.
+   * @param chunkZ The z coordinate in chunks.
+   * @return The entry or <code>null</code> if the chunk is unknown.
+   */
+  public Entry get(final int chunkX, final int chunkZ) {
+    final long key = key(chunkX, chunkZ);
+    final AtomicReferenceArray<Entry> t = table;
+    final int mask = t.length() - 1;
+    for(int i = hash(key) & mask;; i = (i + 1) & mask) {
+      final Entry e = t.get(i);
+      if(e == null) return null;
+      if(e.key == key) return e;
+    }
+  }
+
+  /**
+   * Adds a chunk. When the chunk is already known its entry is returned.
+   * 
+   * @param pos The position in blocks.
+   * @param file The region file.
+   * @param inFilePos The position in the region file.
+   * @return The entry.
+   */
+  public synchronized Entry add(final ChunkPosition pos, final File file,
+      final ChunkInFilePosition inFilePos) {
+    final Entry old = get(pos);
+    if(old != null) return old;
+    if((size + 1) * 4L > table.length() * 3L) {
+      final AtomicReferenceArray<Entry> t = table;
+      final AtomicReferenceArray<Entry> n =
+          new AtomicReferenceArray<Entry>(t.length() * 2);
+      for(int i = 0; i < t.length(); ++i) {
+        final Entry e = t.get(i);
+        if(e != null) {
+          insert(n, e);
+        }
+      }
+      table = n;
+    }
+    final Entry e = new Entry(key(pos.x >> 4, pos.z >> 4), pos, file,
+        inFilePos);
+    insert(table, e);
+    ++size;
+    return e;
+  }
+
+  private static void insert(final AtomicReferenceArray<Entry> t,
+      final Entry e) {
+    final int mask = t.length() - 1;
+    int i = hash(e.key) & mask;
+    while(t.get(i) != null) {
+      i = (i + 1) & mask;
+    }
+    t.set(i, e);
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public synchronized void clear() {
+    table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+    size = 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of entries.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param loaded Whether to return the positions of loaded chunks or of
+   *          chunks that are not loaded yet.
+   * @return The positions.
+   */
+  public ChunkPosition[] getPositions(final boolean loaded) {
+    final AtomicReferenceArray<Entry> t = table;
+    final List<ChunkPosition> res = new ArrayList<ChunkPosition>();
+    for(int i = 0; i < t.length(); ++i) {
+      final Entry e = t.get(i);
+      if(e == null) {
+        continue;
+      }
+      final int s = e.getState();
+      if(loaded ? (s == LOADED || s == DIRTY)
+          : (s == UNLOADED || s == LOADING)) {
+        res.add(e.pos);
+      }
+    }
+    return res.toArray(new ChunkPosition[res.size()]);
+  }
+
+}
@@ -0,0 +1,257 @@
+package nbt.map;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The block and biome counts of a set of chunks. Blocks are counted by id and
+ * by id and height. Blocks of chunks with a palette are counted by their name
+ * as well since several names may map to the same id. Biomes are counted by
+ * columns. Chunks that cannot be read or decoded are skipped and counted
+ * separately.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class Histogram {
+
+  /** The number of possible block ids. */
+  static final int BLOCK_IDS = 1 << 12;
+
+  /** The number of possible biome ids. */
+  static final int BIOME_IDS = 256;
+
+  private long chunks;
+
+  private long badChunks;
+
+  /** The number of blocks by id. */
+  private final long[] blocks = new long[BLOCK_IDS];
+
+  /** The number of blocks by id and height. Created on first use of an id. */
+  private final long[][] layers = new long[BLOCK_IDS][];
+
+  /** The number of columns by biome id. */
+  private final long[] biomes = new long[BIOME_IDS];
+
+  /** The number of blocks by palette name. */
+  private final Map<String, long[]> names = new HashMap<String, long[]>();
+
+  /**
+   * Creates an empty histogram.
+   */
+  Histogram() {
+    // nothing to do
+  }
+
+  /**
+   * Counts a chunk.
+   */
+  void addChunk() {
+    ++chunks;
+  }
+
+  /**
+   * Counts a chunk that has been skipped.
+   */
+  void addBadChunk() {
+    ++badChunks;
+  }
+
+  /**
+   * Counts blocks by their palette name.
+   * 
+   * @param name The block name.
+   * @param count The number of blocks.
+   */
+  void addBlocks(final String name, final long count) {
+    long[] c = names.get(name);
+    if(c == null) {
+      c = new long[1];
+      names.put(name, c);
+    }
+    c[0] += count;
+  }
+
+  /**
+   * Counts blocks.
+   * 
+   * @param id The block id.
+   * @param y The height of the blocks.
+   * @param count The number of blocks.
+   */
+  void addBlocks(final int id, final int y, final long count) {
+    blocks[id] += count;
+    long[] layer = layers[id];
+    if(layer == null) {
+      layer = new long[Chunk.WORLD_MAX_Y];
+      layers[id] = layer;
+    }
+    layer[y] += count;
+  }
+
+  /**
+   * Counts biome columns.
+   * 
+   * @param id The biome id. Ids out of range are ignored.
+   * @param count The number of columns.
+   */
+  void addBiome(final int id, final long count) {
+    if(id < 0 || id >= BIOME_IDS) return;
+    biomes[id] += count;
+  }
+
+  /**
+   * Adds the counts of another histogram.
+   * 
+   * @param other The other histogram.
+   */
+  void add(final Histogram other) {
+    chunks += other.chunks;
+    badChunks += other.badChunks;
+    for(int id = 0; id < BLOCK_IDS; ++id) {
+      blocks[id] += other.blocks[id];
+      final long[] o = other.layers[id];
+      if(o == null) {
+        continue;
+      }
+      if(layers[id] == null) {
+        layers[id] = o.clone();
+        continue;
+      }
+      final long[] layer = layers[id];
+      for(int y = 0; y < layer.length; ++y) {
+        layer[y] += o[y];
+      }
+    }
+    for(int id = 0; id < BIOME_IDS; ++id) {
+      biomes[id] += other.biomes[id];
+    }
+    for(final Map.Entry<String, long[]> e : other.names.entrySet()) {
+      addBlocks(e.getKey(), e.getValue()[0]);
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of counted chunks.
+   */
+  public long getChunks() {
+    return chunks;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of chunks that could not be read or decoded.
+   */
+  public long getBadChunks() {
+    return badChunks;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The sorted block names of chunks with a palette.
+   */
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(new TreeSet<String>(names.keySet()));
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param name The block name.
+   * @return The number of blocks with the given name in chunks with a palette.
+   */
+  public long getCount(final String name) {
+    final long[] c = names.get(name);
+    return c != null ? c[0] : 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param id The block id.
+   * @return The number of blocks with the given id.
+   */
+  public long getCount(final int id) {
+    if(id < 0 || id >= BLOCK_IDS) return 0;
+    return blocks[id];
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param block The block.
+   * @return The number of blocks of the given type.
+   */
+  public long getCount(final Blocks block) {
+    return getCount(block.id);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param id The block id.
+   * @param y The height.
+   * @return The number of blocks with the given id at the given height.
+   */
+  public long getCount(final int id, final int y) {
+    if(id < 0 || id >= BLOCK_IDS || y < 0 || y >= Chunk.WORLD_MAX_Y) return 0;
+    final long[] layer = layers[id];
+    return layer != null ? layer[y] : 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param id The biome id.
+   * @return The number of columns with the given biome.
+   */
+  public long getBiomeColumns(final int id) {
+    if(id < 0 || id >= BIOME_IDS) return 0;
+    return biomes[id];
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param biome The biome.
+   * @return The number of columns with the given biome.
+   */
+  public long getBiomeColumns(final Biomes biome) {
+    return getBiomeColumns(biome.id);
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(chunks).append(" chunks");
+    if(badChunks > 0) {
+      sb.append(", ").append(badChunks).append(" skipped");
+    }
+    for(int id = 0; id < BLOCK_IDS; ++id) {
+      if(blocks[id] == 0) {
+        continue;
+      }
+      sb.append("\n").append(Blocks.getBlockForId(id)).append(" (")
+          .append(id).append("): ").append(blocks[id]);
+    }
+    for(int id = 0; id < BIOME_IDS; ++id) {
+      if(biomes[id] == 0) {
+        continue;
+      }
+      sb.append("\n").append(Biomes.getBlockForId(id)).append(" (")
+          .append(id).append("): ").append(biomes[id]).append(" columns");
+    }
+    for(final String name : getNames()) {
+      sb.append("\n").append(name).append(": ").append(getCount(name));
+    }
+    return sb.toString();
+  }
+
+}
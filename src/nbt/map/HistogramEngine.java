@@ -0,0 +1,426 @@
+package nbt.map;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nbt.read.MapReader;
+import nbt.record.NBTByteArray;
+import nbt.record.NBTCompound;
+import nbt.record.NBTIntArray;
+import nbt.record.NBTList;
+import nbt.record.NBTRecord;
+
+/**
+ * Counts the blocks and biomes of many chunks in parallel. The chunks are
+ * found via the {@link ChunkIndex} and read selectively so that only the
+ * records holding blocks and biomes are built. The work is split on a
+ * fork/join pool and every worker counts into its own {@link Histogram}. The
+ * histograms are merged when all chunks are counted. Chunks that cannot be
+ * read or decoded are skipped and counted as bad chunks.
+ * <p>
+ * Biomes are counted per column. Chunks with three dimensional biomes are
+ * counted by their lowest layer of biome cells.
+ * <p>
+ * The number of workers can be set via the system property
+ * <code>nbt.histogram.threads</code>.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class HistogramEngine {
+
+  /** The names of the records needed for counting. */
+  private static final Set<String> NAMES = Collections.unmodifiableSet(
+      new HashSet<String>(Arrays.asList("DataVersion", "Level", "Sections",
+          "Y", "Blocks", "AddBlocks", "Palette", "BlockStates", "Name",
+          "Biomes")));
+
+  /** The number of chunks counted by one task without splitting. */
+  private static final int LEAF_CHUNKS = 16;
+
+  /** The number of biome cells of three dimensional biomes. */
+  private static final int BIOME_CELLS = 1024;
+
+  /** The number of columns of a chunk. */
+  private static final int COLUMNS = 16 * 16;
+
+  private final ChunkIndex index;
+
+  /**
+   * Creates an engine for a folder of region files.
+   * 
+   * @param folder The folder containing the region files.
+   */
+  public HistogramEngine(final File folder) {
+    this(ChunkIndex.load(folder));
+  }
+
+  /**
+   * Creates an engine for an index.
+   * 
+   * @param index The index of the chunks.
+   */
+  public HistogramEngine(final ChunkIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Counts all chunks of the world.
+   * 
+   * @return The histogram.
+   */
+  public Histogram scanWorld() {
+    final List<ChunkIndex.Entry> entries = new ArrayList<ChunkIndex.Entry>();
+    for(final File f : index.getRegionFiles()) {
+      entries.addAll(index.getEntries(f));
+    }
+    return scan(entries);
+  }
+
+  /**
+   * Counts all chunks of a region file.
+   * 
+   * @param regionFile The region file.
+   * @return The histogram.
+   */
+  public Histogram scanRegion(final File regionFile) {
+    return scan(index.getEntries(regionFile));
+  }
+
+  /**
+   * Counts the chunks within a rectangle. A chunk is counted when its origin
+   * lies within the rectangle.
+   * 
+   * @param minX The lowest x coordinate in blocks.
+   * @param minZ The lowest z coordinate in blocks.
+   * @param maxX The highest x coordinate in blocks.
+   * @param maxZ The highest z coordinate in blocks.
+   * @return The histogram.
+   */
+  public Histogram scanArea(final int minX, final int minZ, final int maxX,
+      final int maxZ) {
+    final List<ChunkIndex.Entry> entries = new ArrayList<ChunkIndex.Entry>();
+    for(final File f : index.getRegionFiles()) {
+      for(final ChunkIndex.Entry e : index.getEntries(f)) {
+        final int x = e.pos.x;
+        final int z = e.pos.z;
+        if(x >= minX && x <= maxX && z >= minZ && z <= maxZ) {
+          entries.add(e);
+        }
+      }
+    }
+    return scan(entries);
+  }
+
+  /**
+   * Counts the given chunks.
+   * 
+   * @param chunks The chunks.
+   * @return The histogram.
+   */
+  public Histogram scan(final Collection<ChunkIndex.Entry> chunks) {
+    final ChunkIndex.Entry[] entries =
+        chunks.toArray(new ChunkIndex.Entry[chunks.size()]);
+    final List<Histogram> counters = new ArrayList<Histogram>();
+    final ThreadLocal<Histogram> local = new ThreadLocal<Histogram>() {
+
+      @Override
+      protected Histogram initialValue() {
+        final Histogram h = new Histogram();
+        synchronized(counters) {
+          counters.add(h);
+        }
+        return h;
+      }
+
+    };
+    final ForkJoinPool pool = new ForkJoinPool(Integer.getInteger(
+        "nbt.histogram.threads", Runtime.getRuntime().availableProcessors()));
+    try {
+      pool.invoke(new Scan(entries, 0, entries.length, local));
+    } finally {
+      pool.shutdown();
+    }
+    final Histogram res = new Histogram();
+    synchronized(counters) {
+      for(final Histogram h : counters) {
+        res.add(h);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Counts a range of chunks by splitting it in halves.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Scan extends RecursiveAction {
+
+    private static final long serialVersionUID = -2791318566357218513L;
+
+    private final ChunkIndex.Entry[] entries;
+
+    private final int from;
+
+    private final int to;
+
+    private final ThreadLocal<Histogram> local;
+
+    Scan(final ChunkIndex.Entry[] entries, final int from, final int to,
+        final ThreadLocal<Histogram> local) {
+      this.entries = entries;
+      this.from = from;
+      this.to = to;
+      this.local = local;
+    }
+
+    @Override
+    protected void compute() {
+      if(to - from > LEAF_CHUNKS) {
+        final int mid = (from + to) >>> 1;
+        invokeAll(new Scan(entries, from, mid, local), new Scan(entries, mid,
+            to, local));
+        return;
+      }
+      final Histogram h = local.get();
+      for(int i = from; i < to; ++i) {
+        final ChunkIndex.Entry e = entries[i];
+        final NBTCompound root =
+            MapReader.getForFile(e.file).read(e.inFilePos, null, NAMES);
+        if(root == null) {
+          h.addBadChunk();
+          continue;
+        }
+        try {
+          count(h, root);
+        } catch(final RuntimeException ex) {
+          System.err.println("skipping chunk " + e.pos + ": " + ex);
+          h.addBadChunk();
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Counts the blocks and biomes of a chunk. All sections are decoded and
+   * checked before counting so that a malformed chunk leaves the histogram
+   * unchanged.
+   * 
+   * @param h The histogram.
+   * @param root The record of the chunk.
+   * @throws IllegalArgumentException If the chunk is malformed.
+   */
+  static void count(final Histogram h, final NBTCompound root) {
+    final NBTRecord lvl = root.get("Level");
+    if(!(lvl instanceof NBTCompound)) return;
+    final NBTCompound level = (NBTCompound) lvl;
+    final int dataVersion = Section.getDataVersion(root);
+    final boolean legacy = dataVersion < Section.FLATTENING;
+    final NBTCompound[] legacySecs = new NBTCompound[Chunk.SECTIONS];
+    final PaletteSection[] paletteSecs = new PaletteSection[Chunk.SECTIONS];
+    final NBTRecord secs = level.get("Sections");
+    if(secs instanceof NBTList) {
+      for(final NBTRecord r : (NBTList<?>) secs) {
+        final NBTCompound sec = (NBTCompound) r;
+        final int y = Chunk.getSectionY(sec);
+        if(y < 0 || y >= Chunk.SECTIONS) {
+          continue;
+        }
+        if(legacy) {
+          checkLegacy(sec);
+          legacySecs[y] = sec;
+        } else {
+          paletteSecs[y] = checkPalette(new PaletteSection(sec,
+              dataVersion < Section.UNSPANNED));
+        }
+      }
+    }
+    h.addChunk();
+    final String air = BlockNames.getName(Blocks.AIR.id);
+    for(int s = 0; s < Chunk.SECTIONS; ++s) {
+      if(legacySecs[s] != null) {
+        countLegacy(h, legacySecs[s], s * 16);
+        continue;
+      }
+      if(paletteSecs[s] != null) {
+        countPalette(h, paletteSecs[s], s * 16);
+        continue;
+      }
+      for(int y = s * 16; y < s * 16 + 16; ++y) {
+        h.addBlocks(Blocks.AIR.id, y, COLUMNS);
+      }
+      if(!legacy) {
+        h.addBlocks(air, Section.BLOCKS);
+      }
+    }
+    countBiomes(h, level.get("Biomes"));
+  }
+
+  /**
+   * Checks the arrays of a section in the format before the flattening.
+   * 
+   * @param sec The record of the section.
+   * @throws IllegalArgumentException If an array is missing or too short.
+   */
+  private static void checkLegacy(final NBTCompound sec) {
+    if(!isArray(sec.get("Blocks"), Section.BLOCKS)) {
+      throw new IllegalArgumentException("malformed Blocks record");
+    }
+    final NBTRecord add = sec.get("AddBlocks");
+    if(add != null && !isArray(add, Section.BLOCKS / 2)) {
+      throw new IllegalArgumentException("malformed AddBlocks record");
+    }
+  }
+
+  /**
+   * Checks whether a record is a byte array with a minimal length.
+   * 
+   * @param rec The record or <code>null</code>.
+   * @param length The minimal length.
+   * @return Whether the record is a byte array with at least the given length.
+   */
+  private static boolean isArray(final NBTRecord rec, final int length) {
+    return rec instanceof NBTByteArray
+        && ((NBTByteArray) rec).getLength() >= length;
+  }
+
+  /**
+   * Checks the palette indices of a section.
+   * 
+   * @param sec The section.
+   * @return The section.
+   * @throws IllegalArgumentException If an index lies outside the palette.
+   */
+  private static PaletteSection checkPalette(final PaletteSection sec) {
+    final int size = sec.getPaletteSize();
+    for(int i = 0; i < Section.BLOCKS; ++i) {
+      if(sec.getPaletteIndex(i) >= size) throw new IllegalArgumentException(
+          "palette index out of range: " + sec.getPaletteIndex(i));
+    }
+    return sec;
+  }
+
+  /**
+   * Counts a section in the format before the flattening. The arrays are read
+   * directly without decoding a {@link LegacySection}.
+   * 
+   * @param h The histogram.
+   * @param sec The record of the section.
+   * @param base The height of the lowest layer.
+   */
+  private static void countLegacy(final Histogram h, final NBTCompound sec,
+      final int base) {
+    final NBTByteArray blocks = sec.get("Blocks");
+    final NBTRecord a = sec.get("AddBlocks");
+    final NBTByteArray add = a instanceof NBTByteArray ? (NBTByteArray) a
+        : null;
+    final int[] counts = new int[Histogram.BLOCK_IDS];
+    for(int y = 0; y < 16; ++y) {
+      final int start = y << 8;
+      int min = Histogram.BLOCK_IDS;
+      int max = -1;
+      for(int i = start; i < start + COLUMNS; ++i) {
+        int id = blocks.getAt(i) & 0xff;
+        if(add != null) {
+          id |= ((add.getAt(i >> 1) >> ((i & 1) << 2)) & 0xf) << 8;
+        }
+        ++counts[id];
+        min = Math.min(min, id);
+        max = Math.max(max, id);
+      }
+      flush(h, counts, min, max, base + y);
+    }
+  }
+
+  /**
+   * Counts a section with a palette by block id and by palette name.
+   * 
+   * @param h The histogram.
+   * @param sec The section.
+   * @param base The height of the lowest layer.
+   */
+  private static void countPalette(final Histogram h,
+      final PaletteSection sec, final int base) {
+    final int size = sec.getPaletteSize();
+    final int[] counts = new int[Histogram.BLOCK_IDS];
+    final long[] entries = new long[size];
+    for(int y = 0; y < 16; ++y) {
+      final int start = y << 8;
+      int min = Histogram.BLOCK_IDS;
+      int max = -1;
+      for(int i = start; i < start + COLUMNS; ++i) {
+        final int id = sec.getId(i);
+        ++counts[id];
+        ++entries[sec.getPaletteIndex(i)];
+        min = Math.min(min, id);
+        max = Math.max(max, id);
+      }
+      flush(h, counts, min, max, base + y);
+    }
+    for(int e = 0; e < size; ++e) {
+      if(entries[e] == 0) {
+        continue;
+      }
+      h.addBlocks(sec.getPaletteName(e), entries[e]);
+    }
+  }
+
+  /**
+   * Adds the counts of one layer to the histogram and clears them.
+   * 
+   * @param h The histogram.
+   * @param counts The counts by block id.
+   * @param min The lowest counted id.
+   * @param max The highest counted id.
+   * @param y The height of the layer.
+   */
+  private static void flush(final Histogram h, final int[] counts,
+      final int min, final int max, final int y) {
+    for(int id = min; id <= max; ++id) {
+      if(counts[id] == 0) {
+        continue;
+      }
+      h.addBlocks(id, y, counts[id]);
+      counts[id] = 0;
+    }
+  }
+
+  /**
+   * Counts the biome columns of a chunk.
+   * 
+   * @param h The histogram.
+   * @param rec The biome record or <code>null</code>.
+   */
+  private static void countBiomes(final Histogram h, final NBTRecord rec) {
+    if(rec instanceof NBTByteArray) {
+      final NBTByteArray arr = (NBTByteArray) rec;
+      final int len = Math.min(arr.getLength(), COLUMNS);
+      for(int i = 0; i < len; ++i) {
+        h.addBiome(arr.getAt(i) & 0xff, 1);
+      }
+    } else if(rec instanceof NBTIntArray) {
+      final NBTIntArray arr = (NBTIntArray) rec;
+      if(arr.getLength() == BIOME_CELLS) {
+        // a cell of the lowest layer covers 4 by 4 columns
+        for(int i = 0; i < 16; ++i) {
+          h.addBiome(arr.getAt(i), 16);
+        }
+      } else {
+        final int len = Math.min(arr.getLength(), COLUMNS);
+        for(int i = 0; i < len; ++i) {
+          h.addBiome(arr.getAt(i), 1);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+package nbt.map;
+
+import java.util.Arrays;
+
+import nbt.record.NBTByteArray;
+import nbt.record.NBTCompound;
+
+/**
+ * A section in the format before the flattening. The block ids are stored in
+ * the <code>Blocks</code> array and the optional <code>AddBlocks</code> nibble
+ * array. They are decoded into a flat array so that accessing a block is a
+ * plain array access. Sections with the same shared block array share their
+ * decoded ids until one of them changes.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+final class LegacySection extends Section {
+
+  private short[] ids;
+
+  /** Whether the decoded ids are shared and must be copied before writing. */
+  private boolean sharedIds;
+
+  /**
+   * Decodes a section.
+   * 
+   * @param record The record of the section.
+   */
+  LegacySection(final NBTCompound record) {
+    super(record);
+    final NBTByteArray blocks = record.get("Blocks");
+    final NBTByteArray add = record.get("AddBlocks");
+    final SectionStore store = SectionStore.getInstance();
+    if(store != null && add == null) {
+      ids = store.getIds(blocks.share());
+      sharedIds = true;
+      return;
+    }
+    ids = new short[BLOCKS];
+    for(int i = 0; i < BLOCKS; ++i) {
+      ids[i] = (short) (blocks.getAt(i) & 0xff);
+    }
+    if(add != null) {
+      for(int i = 0; i < BLOCKS; ++i) {
+        final int nibble = (add.getAt(i >> 1) >> ((i & 1) << 2)) & 0xf;
+        ids[i] |= nibble << 8;
+      }
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The decoded ids for writing. Shared ids are copied first.
+   */
+  private short[] writableIds() {
+    if(sharedIds) {
+      ids = ids.clone();
+      sharedIds = false;
+    }
+    return ids;
+  }
+
+  /** The highest id that fits into the blocks and add blocks arrays. */
+  private static final int MAX_ID = 0xfff;
+
+  /**
+   * Checks whether an id can be stored in this format.
+   * 
+   * @param id The block id.
+   * @throws IllegalArgumentException If the id is out of range.
+   */
+  private static void checkId(final int id) {
+    if(id < 0 || id > MAX_ID) throw new IllegalArgumentException(
+        "block id out of range: " + id);
+  }
+
+  @Override
+  int getId(final int index) {
+    return ids[index];
+  }
+
+  @Override
+  void setId(final int index, final int id) {
+    checkId(id);
+    if(ids[index] == id) return;
+    writableIds()[index] = (short) id;
+    changed = true;
+  }
+
+  @Override
+  protected void fillIds(final int from, final int to, final int id) {
+    checkId(id);
+    Arrays.fill(writableIds(), from, to, (short) id);
+  }
+
+  @Override
+  int replace(final int from, final int to, final int old, final int id) {
+    checkId(id);
+    int res = 0;
+    for(int i = from; i < to; ++i) {
+      if(ids[i] == old) {
+        writableIds()[i] = (short) id;
+        ++res;
+      }
+    }
+    if(res > 0) {
+      changed = true;
+    }
+    return res;
+  }
+
+  @Override
+  boolean isEmpty() {
+    for(final short id : ids) {
+      if(id != 0) return false;
+    }
+    return true;
+  }
+
+  @Override
+  protected void writeIds() {
+    final byte[] blocks = new byte[BLOCKS];
+    byte[] add = null;
+    for(int i = 0; i < BLOCKS; ++i) {
+      final int id = ids[i];
+      blocks[i] = (byte) id;
+      if(id > 0xff) {
+        if(add == null) {
+          add = new byte[BLOCKS / 2];
+        }
+        add[i >> 1] |= ((id >> 8) & 0xf) << ((i & 1) << 2);
+      }
+    }
+    ((NBTByteArray) record.get("Blocks")).setArray(blocks);
+    final NBTByteArray addBlocks = record.get("AddBlocks");
+    if(addBlocks != null) {
+      addBlocks.setArray(add != null ? add : new byte[BLOCKS / 2]);
+    } else if(add != null) {
+      record.add(new NBTByteArray("AddBlocks", add));
+    }
+  }
+
+}
@@ -0,0 +1,635 @@
+package nbt.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import nbt.record.NibbleArray;
+
+/**
+ * Recomputes the sky light and the block light after columns have been
+ * edited. The light of the edited columns is removed and propagated again via
+ * a breadth first search. The search is bounded to the chunks containing
+ * edited columns and their direct neighbors since light does not travel
+ * further than 15 blocks.
+ * <p>
+ * The edited chunks are grouped into tiles of {@value #TILE} by
+ * {@value #TILE} chunks. Tiles are processed in four phases so that the tiles
+ * of one phase are at least one tile apart. Their chunks including the
+ * neighbors never overlap and the tiles of a phase are relit in parallel.
+ * <p>
+ * Missing sections are not written. Light does not propagate through them
+ * and chunks that cannot be obtained from the {@link ChunkSource} are
+ * treated the same way.
+ * <p>
+ * The sections of all chunks of a tile are decoded and their light arrays are
+ * attached by the calling thread. The worker threads only change the values
+ * of the light arrays afterwards.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class LightEngine {
+
+  /**
+   * Provides the chunks for the relighting.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  public interface ChunkSource {
+
+    /**
+     * Obtains a chunk. This method is called by the thread calling
+     * {@link LightEngine#relight()} only.
+     * 
+     * @param chunkX The x coordinate in chunks.
+     * @param chunkZ The z coordinate in chunks.
+     * @return The chunk or <code>null</code> if it does not exist.
+     */
+    Chunk getChunk(int chunkX, int chunkZ);
+
+    /**
+     * Releases a chunk obtained by {@link #getChunk(int, int)} after its light
+     * has been recomputed. This method is called by the thread calling
+     * {@link LightEngine#relight()} only.
+     * 
+     * @param chunk The chunk.
+     */
+    void release(Chunk chunk);
+
+  }
+
+  /** The highest light level. */
+  private static final int FULL = 15;
+
+  /** The number of possible block ids. */
+  private static final int MAX_IDS = 1 << 12;
+
+  /** The amount of light every block absorbs. */
+  private static final byte[] OPACITY = new byte[MAX_IDS];
+
+  /** The amount of light every block emits. */
+  private static final byte[] EMISSION = new byte[MAX_IDS];
+
+  static {
+    Arrays.fill(OPACITY, (byte) FULL);
+    for(final Blocks b : Blocks.values()) {
+      if(b.id < 0) {
+        continue;
+      }
+      OPACITY[b.id] = (byte) getOpacity(b);
+      EMISSION[b.id] = (byte) getEmission(b);
+    }
+  }
+
+  private static int getOpacity(final Blocks b) {
+    switch(b) {
+      case LEAVES:
+      case WEB:
+        return 1;
+      case WATER:
+      case WATER_STAT:
+      case ICE:
+        return 3;
+      case AIR:
+      case SAPLING:
+      case GLASS:
+      case BED:
+      case RAIL_POWERED:
+      case RAIL_DETECTOR:
+      case GRASS_TALL:
+      case DEAD_BUSH:
+      case DANDELION:
+      case ROSE:
+      case MUSHROOM_BROWN:
+      case MUSHROOM_RED:
+      case TORCH:
+      case FIRE:
+      case SPAWNER:
+      case CHEST:
+      case REDSTONE_WIRE:
+      case CROPS:
+      case SIGN:
+      case DOOR_WOOD:
+      case LADDER:
+      case RAIL:
+      case SIGN_WALL:
+      case LEVER:
+      case PLATE_STONE:
+      case DOOR_IRON:
+      case PLATE_WOOD:
+      case REDSTONE_TORCH:
+      case REDSTONE_TORCH_ON:
+      case BUTTON:
+      case SNOW:
+      case CACTUS:
+      case CANE:
+      case FENCE:
+      case PORTAL:
+      case CAKE:
+      case REDSTONE_REP:
+      case REDSTONE_REP_ON:
+      case TRAP:
+      case IRON_BAR:
+      case GLASS_PANE:
+      case STEM_PUMPKIN:
+      case STEM_MELON:
+      case VINE:
+      case FENCE_GATE:
+      case LILY_PAD:
+      case FENCE_NETHER_BRICK:
+      case NETHER_WART:
+      case ENCHANTMENT:
+      case BREWING:
+      case CAULDRON:
+      case PORTAL_END:
+      case DRAGON_EGG:
+        return 0;
+      default:
+        return FULL;
+    }
+  }
+
+  private static int getEmission(final Blocks b) {
+    switch(b) {
+      case LAVA:
+      case LAVA_STAT:
+      case FIRE:
+      case GLOWSTONE:
+      case PUMPKIN_LIGHT:
+      case REDSTONE_LAMP_ON:
+      case PORTAL_END:
+        return 15;
+      case TORCH:
+        return 14;
+      case FURNACE_ACTIVE:
+        return 13;
+      case PORTAL:
+        return 11;
+      case REDSTONE_ORE_ON:
+      case REDSTONE_REP_ON:
+        return 9;
+      case REDSTONE_TORCH_ON:
+        return 7;
+      case MUSHROOM_BROWN:
+      case BREWING:
+      case DRAGON_EGG:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  /** The size of a tile in chunks as power of two. */
+  private static final int TILE_SHIFT = 2;
+
+  /** The size of a tile in chunks. */
+  private static final int TILE = 1 << TILE_SHIFT;
+
+  /** The size of a tile including its neighbors in chunks. */
+  private static final int REGION = TILE + 2;
+
+  private final ChunkSource source;
+
+  private final WorkerPool pool;
+
+  /** The edited columns of every chunk as column masks. */
+  private final Map<Long, long[]> columns = new HashMap<Long, long[]>();
+
+  /**
+   * Creates a light engine.
+   * 
+   * @param source The source of the chunks.
+   * @param pool The pool that relights the tiles.
+   */
+  public LightEngine(final ChunkSource source, final WorkerPool pool) {
+    this.source = source;
+    this.pool = pool;
+  }
+
+  private static long key(final int x, final int z) {
+    return ((long) x << 32) | (z & 0xffffffffL);
+  }
+
+  private static int keyX(final long key) {
+    return (int) (key >> 32);
+  }
+
+  private static int keyZ(final long key) {
+    return (int) key;
+  }
+
+  /**
+   * Signals that a column has been edited.
+   * 
+   * @param x The x coordinate in blocks.
+   * @param z The z coordinate in blocks.
+   */
+  public void columnChanged(final int x, final int z) {
+    final Long k = key(x >> 4, z >> 4);
+    long[] mask = columns.get(k);
+    if(mask == null) {
+      mask = new long[Chunk.COLUMN_MASK_LENGTH];
+      columns.put(k, mask);
+    }
+    final int i = ((z & 15) << 4) | (x & 15);
+    mask[i >> 6] |= 1L << (i & 63);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of chunks with edited columns.
+   */
+  public int getChangedChunks() {
+    return columns.size();
+  }
+
+  /**
+   * Recomputes the light of all edited columns. The edited columns are reset
+   * afterwards.
+   */
+  public void relight() {
+    final Map<Long, List<Long>> tiles = new HashMap<Long, List<Long>>();
+    for(final Long k : columns.keySet()) {
+      final Long t = key(keyX(k) >> TILE_SHIFT, keyZ(k) >> TILE_SHIFT);
+      List<Long> list = tiles.get(t);
+      if(list == null) {
+        list = new ArrayList<Long>();
+        tiles.put(t, list);
+      }
+      list.add(k);
+    }
+    final int batch = Math.max(pool.getParallelism(), 1);
+    for(int phase = 0; phase < 4; ++phase) {
+      final List<Tile> todo = new ArrayList<Tile>();
+      for(final Map.Entry<Long, List<Long>> e : tiles.entrySet()) {
+        final int tx = keyX(e.getKey());
+        final int tz = keyZ(e.getKey());
+        if(((tx & 1) << 1 | (tz & 1)) != phase) {
+          continue;
+        }
+        todo.add(new Tile(tx, tz, e.getValue()));
+        if(todo.size() >= batch) {
+          relight(todo);
+          todo.clear();
+        }
+      }
+      relight(todo);
+    }
+    columns.clear();
+  }
+
+  /**
+   * Relights tiles in parallel. The tiles must not share any chunks.
+   * 
+   * @param tiles The tiles.
+   */
+  private void relight(final List<Tile> tiles) {
+    if(tiles.isEmpty()) return;
+    for(final Tile t : tiles) {
+      t.load();
+    }
+    final CountDownLatch latch = new CountDownLatch(tiles.size());
+    try {
+      for(final Tile t : tiles) {
+        pool.execute(new Runnable() {
+
+          @Override
+          public void run() {
+            try {
+              t.relight();
+            } finally {
+              latch.countDown();
+            }
+          }
+
+        });
+      }
+      try {
+        latch.await();
+      } catch(final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } finally {
+      for(final Tile t : tiles) {
+        t.release();
+      }
+    }
+  }
+
+  /**
+   * A tile of chunks including their neighbors.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private final class Tile {
+
+    /** The chunk x coordinate of the first chunk of the region. */
+    private final int originX;
+
+    /** The chunk z coordinate of the first chunk of the region. */
+    private final int originZ;
+
+    /** The chunks with edited columns. */
+    private final List<Long> edited;
+
+    /** The chunks of the region. */
+    private final Chunk[] chunks = new Chunk[REGION * REGION];
+
+    /** The removal queue. */
+    private final IntQueue remove = new IntQueue();
+
+    /** The propagation queue. */
+    private final IntQueue add = new IntQueue();
+
+    /** The new light of the edited columns. */
+    private final IntQueue seeds = new IntQueue();
+
+    Tile(final int tx, final int tz, final List<Long> edited) {
+      originX = tx * TILE - 1;
+      originZ = tz * TILE - 1;
+      this.edited = edited;
+    }
+
+    /**
+     * Obtains the edited chunks and their neighbors. Their sections are
+     * decoded and the light arrays are attached.
+     */
+    void load() {
+      for(final Long k : edited) {
+        final int cx = keyX(k) - originX;
+        final int cz = keyZ(k) - originZ;
+        for(int dz = -1; dz <= 1; ++dz) {
+          for(int dx = -1; dx <= 1; ++dx) {
+            final int i = (cz + dz) * REGION + cx + dx;
+            if(chunks[i] == null) {
+              chunks[i] = source.getChunk(originX + cx + dx,
+                  originZ + cz + dz);
+              if(chunks[i] != null) {
+                prepare(chunks[i]);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Decodes the sections of a chunk and attaches their light arrays so that
+     * relighting only changes the values of the arrays.
+     * 
+     * @param c The chunk.
+     */
+    private void prepare(final Chunk c) {
+      for(int sy = 0; sy < Chunk.SECTIONS; ++sy) {
+        final Section s = c.getDecodedSection(sy);
+        if(s != null) {
+          s.attachLight();
+        }
+      }
+    }
+
+    /**
+     * Releases all chunks.
+     */
+    void release() {
+      for(int i = 0; i < chunks.length; ++i) {
+        if(chunks[i] != null) {
+          source.release(chunks[i]);
+          chunks[i] = null;
+        }
+      }
+    }
+
+    // positions are packed as (lx << 19) | (lz << 12) | (y << 4) | level
+    // with local block coordinates lx and lz relative to the region
+
+    private int pack(final int lx, final int y, final int lz,
+        final int level) {
+      return (lx << 19) | (lz << 12) | (y << 4) | level;
+    }
+
+    private Section section(final int lx, final int y, final int lz) {
+      final Chunk c = chunks[(lz >> 4) * REGION + (lx >> 4)];
+      return c != null ? c.getDecodedSection(y >> 4) : null;
+    }
+
+    private NibbleArray light(final Section s, final boolean sky) {
+      return sky ? s.getSkyLight() : s.getBlockLight();
+    }
+
+    /**
+     * Recomputes both kinds of light.
+     */
+    void relight() {
+      relight(true);
+      relight(false);
+    }
+
+    private void relight(final boolean sky) {
+      for(final Long k : edited) {
+        final Chunk c = chunks[(keyZ(k) - originZ) * REGION + keyX(k)
+            - originX];
+        if(c == null) {
+          continue;
+        }
+        final long[] mask = columns.get(k);
+        for(int w = 0; w < mask.length; ++w) {
+          long bits = mask[w];
+          while(bits != 0) {
+            final int i = (w << 6) | Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            clearColumn(c, k, i & 15, i >> 4, sky);
+          }
+        }
+      }
+      propagateRemoval(sky);
+      while(!seeds.isEmpty()) {
+        final int p = seeds.poll();
+        final int lx = p >>> 19;
+        final int lz = (p >>> 12) & 0x7f;
+        final int y = (p >>> 4) & 0xff;
+        final int level = p & 15;
+        final Section s = section(lx, y, lz);
+        final NibbleArray arr = light(s, sky);
+        final int idx = Section.index(lx & 15, y & 15, lz & 15);
+        if(arr.get(idx) < level) {
+          arr.set(idx, level);
+          add.add(p);
+        }
+      }
+      propagate(sky);
+    }
+
+    /**
+     * Removes the light of an edited column and computes the light the column
+     * emits or receives from the sky directly.
+     * 
+     * @param c The chunk.
+     * @param k The key of the chunk.
+     * @param x The x coordinate within the chunk.
+     * @param z The z coordinate within the chunk.
+     * @param sky Whether to compute the sky light.
+     */
+    private void clearColumn(final Chunk c, final Long k, final int x,
+        final int z, final boolean sky) {
+      final int lx = ((keyX(k) - originX) << 4) | x;
+      final int lz = ((keyZ(k) - originZ) << 4) | z;
+      int direct = FULL;
+      for(int sy = Chunk.SECTIONS - 1; sy >= 0; --sy) {
+        final Section s = c.getDecodedSection(sy);
+        if(s == null) {
+          // missing sections are air
+          continue;
+        }
+        final NibbleArray arr = light(s, sky);
+        for(int y = 15; y >= 0; --y) {
+          final int idx = Section.index(x, y, z);
+          final int id = s.getId(idx);
+          final int level;
+          if(sky) {
+            direct = Math.max(direct - OPACITY[id], 0);
+            level = direct;
+          } else {
+            level = EMISSION[id];
+          }
+          final int wy = (sy << 4) | y;
+          final int old = arr.get(idx);
+          if(old != 0) {
+            arr.set(idx, 0);
+            remove.add(pack(lx, wy, lz, old));
+          }
+          if(level != 0) {
+            seeds.add(pack(lx, wy, lz, level));
+          }
+        }
+      }
+    }
+
+    private void propagateRemoval(final boolean sky) {
+      while(!remove.isEmpty()) {
+        final int p = remove.poll();
+        final int lx = p >>> 19;
+        final int lz = (p >>> 12) & 0x7f;
+        final int y = (p >>> 4) & 0xff;
+        final int level = p & 15;
+        removeAt(lx - 1, y, lz, level, sky);
+        removeAt(lx + 1, y, lz, level, sky);
+        removeAt(lx, y - 1, lz, level, sky);
+        removeAt(lx, y + 1, lz, level, sky);
+        removeAt(lx, y, lz - 1, level, sky);
+        removeAt(lx, y, lz + 1, level, sky);
+      }
+    }
+
+    private void removeAt(final int lx, final int y, final int lz,
+        final int level, final boolean sky) {
+      if(!inRegion(lx, y, lz)) return;
+      final Section s = section(lx, y, lz);
+      if(s == null) return;
+      final NibbleArray arr = light(s, sky);
+      final int idx = Section.index(lx & 15, y & 15, lz & 15);
+      final int cur = arr.get(idx);
+      if(cur == 0) return;
+      if(cur < level) {
+        arr.set(idx, 0);
+        remove.add(pack(lx, y, lz, cur));
+      } else {
+        // the light comes from elsewhere and has to fill the gap
+        add.add(pack(lx, y, lz, cur));
+      }
+    }
+
+    private void propagate(final boolean sky) {
+      while(!add.isEmpty()) {
+        final int p = add.poll();
+        final int lx = p >>> 19;
+        final int lz = (p >>> 12) & 0x7f;
+        final int y = (p >>> 4) & 0xff;
+        final int level = p & 15;
+        final Section s = section(lx, y, lz);
+        if(light(s, sky).get(Section.index(lx & 15, y & 15, lz & 15))
+            != level) {
+          // the light has been changed in the mean time
+          continue;
+        }
+        addAt(lx - 1, y, lz, level, sky);
+        addAt(lx + 1, y, lz, level, sky);
+        addAt(lx, y - 1, lz, level, sky);
+        addAt(lx, y + 1, lz, level, sky);
+        addAt(lx, y, lz - 1, level, sky);
+        addAt(lx, y, lz + 1, level, sky);
+      }
+    }
+
+    private void addAt(final int lx, final int y, final int lz,
+        final int level, final boolean sky) {
+      if(!inRegion(lx, y, lz)) return;
+      final Section s = section(lx, y, lz);
+      if(s == null) return;
+      final int idx = Section.index(lx & 15, y & 15, lz & 15);
+      final int res = level - Math.max(OPACITY[s.getId(idx)], 1);
+      if(res <= 0) return;
+      final NibbleArray arr = light(s, sky);
+      if(arr.get(idx) >= res) return;
+      arr.set(idx, res);
+      add.add(pack(lx, y, lz, res));
+    }
+
+    private boolean inRegion(final int lx, final int y, final int lz) {
+      return lx >= 0 && lx < REGION * 16 && lz >= 0 && lz < REGION * 16
+          && y >= 0 && y < Chunk.WORLD_MAX_Y;
+    }
+
+  }
+
+  /**
+   * A growing queue of ints.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class IntQueue {
+
+    private int[] items = new int[1024];
+
+    private int head;
+
+    private int tail;
+
+    IntQueue() {
+      // nothing to do
+    }
+
+    boolean isEmpty() {
+      return head == tail;
+    }
+
+    void add(final int item) {
+      if(tail == items.length) {
+        if(head > items.length / 2) {
+          System.arraycopy(items, head, items, 0, tail - head);
+        } else {
+          items = Arrays.copyOf(items, items.length * 2);
+          System.arraycopy(items, head, items, 0, tail - head);
+        }
+        tail -= head;
+        head = 0;
+      }
+      items[tail++] = item;
+    }
+
+    int poll() {
+      final int res = items[head++];
+      if(head == tail) {
+        head = 0;
+        tail = 0;
+      }
+      return res;
+    }
+
+  }
+
+}
@@ -0,0 +1,405 @@
+package nbt.map;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nbt.record.NBTByteArray;
+import nbt.record.NBTCompound;
+import nbt.record.NBTList;
+import nbt.record.NBTLongArray;
+import nbt.record.NBTRecord;
+import nbt.record.NBTString;
+import nbt.record.NBTType;
+import nbt.record.NibbleArray;
+
+/**
+ * A section in the format since the flattening. Every block is an index into
+ * the <code>Palette</code> of the section. The indices are bit packed into the
+ * <code>BlockStates</code> long array using the smallest width that fits the
+ * palette but at least four bits. Blocks are read and written in the packed
+ * array directly. New palette entries are appended and the array is repacked
+ * with a wider width only when the palette outgrows the current one. Entries
+ * that are no longer used by any block are dropped when the section is
+ * written.
+ * <p>
+ * The state of a block is stored in its palette entry. Palette sections
+ * therefore keep the metadata of the blocks in memory only.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+final class PaletteSection extends Section {
+
+  /**
+   * The positions of the packed indices for one width.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Layout {
+
+    /** The width of an index in bits. */
+    final int bits;
+
+    /** The mask of an index. */
+    final long mask;
+
+    /** Whether indices may span two longs. */
+    final boolean spanning;
+
+    /** The number of longs. */
+    final int length;
+
+    /** The long holding the start of every index. */
+    final int[] word = new int[BLOCKS];
+
+    /** The offset of every index within its long. */
+    final byte[] shift = new byte[BLOCKS];
+
+    Layout(final int bits, final boolean spanning) {
+      this.bits = bits;
+      this.spanning = spanning;
+      mask = (1L << bits) - 1;
+      if(spanning) {
+        length = (BLOCKS * bits + 63) / 64;
+        for(int i = 0; i < BLOCKS; ++i) {
+          final int pos = i * bits;
+          word[i] = pos >> 6;
+          shift[i] = (byte) (pos & 63);
+        }
+      } else {
+        final int perLong = 64 / bits;
+        length = (BLOCKS + perLong - 1) / perLong;
+        for(int i = 0; i < BLOCKS; ++i) {
+          word[i] = i / perLong;
+          shift[i] = (byte) ((i % perLong) * bits);
+        }
+      }
+    }
+
+    /**
+     * Reads an index.
+     * 
+     * @param data The packed indices.
+     * @param i The position of the block.
+     * @return The index.
+     */
+    int get(final long[] data, final int i) {
+      final int w = word[i];
+      final int s = shift[i];
+      long v = data[w] >>> s;
+      if(s + bits > 64) {
+        v |= data[w + 1] << (64 - s);
+      }
+      return (int) (v & mask);
+    }
+
+    /**
+     * Writes an index.
+     * 
+     * @param data The packed indices.
+     * @param i The position of the block.
+     * @param v The index.
+     */
+    void set(final long[] data, final int i, final int v) {
+      final int w = word[i];
+      final int s = shift[i];
+      data[w] = (data[w] & ~(mask << s)) | ((long) v << s);
+      if(s + bits > 64) {
+        final int r = 64 - s;
+        data[w + 1] = (data[w + 1] & ~(mask >>> r)) | ((long) v >>> r);
+      }
+    }
+
+  }
+
+  /** The smallest width of an index. */
+  private static final int MIN_BITS = 4;
+
+  /** The layouts by spanning and width. */
+  private static final Layout[][] LAYOUTS = new Layout[2][33];
+
+  /**
+   * Getter.
+   * 
+   * @param bits The width of an index.
+   * @param spanning Whether indices may span two longs.
+   * @return The layout.
+   */
+  private static synchronized Layout getLayout(final int bits,
+      final boolean spanning) {
+    final Layout[] layouts = LAYOUTS[spanning ? 1 : 0];
+    if(layouts[bits] == null) {
+      layouts[bits] = new Layout(bits, spanning);
+    }
+    return layouts[bits];
+  }
+
+  /**
+   * Computes the width of an index.
+   * 
+   * @param size The size of the palette.
+   * @return The width in bits.
+   */
+  private static int bitsFor(final int size) {
+    return Math.max(MIN_BITS, 32 - Integer.numberOfLeadingZeros(size - 1));
+  }
+
+  /** The entries of the palette. */
+  private final List<NBTCompound> palette = new ArrayList<NBTCompound>();
+
+  /** The block ids of the palette entries. */
+  private int[] ids;
+
+  /** The packed indices. */
+  private long[] data;
+
+  private Layout layout;
+
+  /** Whether the palette has to be written. */
+  private boolean paletteChanged;
+
+  /**
+   * Decodes the palette of a section. A section without blocks consists of
+   * air.
+   * 
+   * @param record The record of the section.
+   * @param spanning Whether indices may span two longs.
+   */
+  PaletteSection(final NBTCompound record, final boolean spanning) {
+    super(record);
+    final NBTRecord p = record.get("Palette");
+    final NBTRecord s = record.get("BlockStates");
+    if(!(p instanceof NBTList) || !(s instanceof NBTLongArray)) {
+      palette.add(entry(Blocks.AIR.id));
+      ids = new int[] { Blocks.AIR.id};
+      layout = getLayout(MIN_BITS, spanning);
+      data = new long[layout.length];
+      paletteChanged = true;
+      return;
+    }
+    ids = new int[((NBTList<?>) p).getLength()];
+    for(final NBTRecord r : (NBTList<?>) p) {
+      final NBTCompound e = (NBTCompound) r;
+      final NBTString name = e.get("Name");
+      ids[palette.size()] = BlockNames.getId(name.getContent());
+      palette.add(e);
+    }
+    final NBTLongArray states = (NBTLongArray) s;
+    layout = getLayout(bitsFor(Math.max(ids.length, 1)), spanning);
+    if(states.getLength() != layout.length) throw new IllegalArgumentException(
+        "expected " + layout.length + " block states got "
+            + states.getLength());
+    data = new long[layout.length];
+    for(int i = 0; i < data.length; ++i) {
+      data[i] = states.getAt(i);
+    }
+  }
+
+  /**
+   * Creates a palette entry. The entry has a name only and thus stands for
+   * the default state of the block.
+   * 
+   * @param id The block id.
+   * @return The palette entry.
+   */
+  private static NBTCompound entry(final int id) {
+    final List<NBTRecord> content = new ArrayList<NBTRecord>();
+    content.add(new NBTString("Name", BlockNames.getName(id)));
+    return new NBTCompound(null, content);
+  }
+
+  /**
+   * Finds the palette index of a block id. A missing id is added to the
+   * palette in the default state of the block. Existing entries with other
+   * states are reused as they are.
+   * 
+   * @param id The block id.
+   * @return The palette index.
+   */
+  private int paletteIndex(final int id) {
+    final int size = palette.size();
+    for(int i = 0; i < size; ++i) {
+      if(ids[i] == id) return i;
+    }
+    final NBTCompound e = entry(id);
+    if(size == ids.length) {
+      final int[] tmp = new int[Math.max(size * 2, 4)];
+      System.arraycopy(ids, 0, tmp, 0, size);
+      ids = tmp;
+    }
+    ids[size] = id;
+    palette.add(e);
+    paletteChanged = true;
+    if(size + 1 > 1 << layout.bits) {
+      repack(getLayout(bitsFor(size + 1), layout.spanning));
+    }
+    return size;
+  }
+
+  /**
+   * Repacks the indices with another width.
+   * 
+   * @param to The new layout.
+   */
+  private void repack(final Layout to) {
+    final long[] res = new long[to.length];
+    for(int i = 0; i < BLOCKS; ++i) {
+      to.set(res, i, layout.get(data, i));
+    }
+    data = res;
+    layout = to;
+  }
+
+  /**
+   * Drops the palette entries that are not used by any block and repacks the
+   * indices with the smallest width that fits the remaining entries.
+   */
+  private void compact() {
+    final int size = palette.size();
+    final boolean[] used = new boolean[size];
+    int count = 0;
+    for(int i = 0; i < BLOCKS; ++i) {
+      final int p = layout.get(data, i);
+      if(used[p]) {
+        continue;
+      }
+      used[p] = true;
+      if(++count == size) return;
+    }
+    final int[] map = new int[size];
+    final int[] tmp = new int[count];
+    final List<NBTCompound> entries = new ArrayList<NBTCompound>(count);
+    for(int i = 0; i < size; ++i) {
+      if(!used[i]) {
+        continue;
+      }
+      map[i] = entries.size();
+      tmp[entries.size()] = ids[i];
+      entries.add(palette.get(i));
+    }
+    final Layout to = getLayout(bitsFor(count), layout.spanning);
+    final long[] res = new long[to.length];
+    for(int i = 0; i < BLOCKS; ++i) {
+      to.set(res, i, map[layout.get(data, i)]);
+    }
+    palette.clear();
+    palette.addAll(entries);
+    ids = tmp;
+    data = res;
+    layout = to;
+    paletteChanged = true;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of entries of the palette.
+   */
+  int getPaletteSize() {
+    return palette.size();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param entry The palette index.
+   * @return The block name of the palette entry.
+   */
+  String getPaletteName(final int entry) {
+    final NBTString name = palette.get(entry).get("Name");
+    return name.getContent();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param index The index of the block.
+   * @return The palette index of the block.
+   */
+  int getPaletteIndex(final int index) {
+    return layout.get(data, index);
+  }
+
+  @Override
+  int getId(final int index) {
+    return ids[layout.get(data, index)];
+  }
+
+  @Override
+  void setId(final int index, final int id) {
+    if(ids[layout.get(data, index)] == id) return;
+    layout.set(data, index, paletteIndex(id));
+    changed = true;
+  }
+
+  @Override
+  protected void fillIds(final int from, final int to, final int id) {
+    final int p = paletteIndex(id);
+    for(int i = from; i < to; ++i) {
+      layout.set(data, i, p);
+    }
+  }
+
+  @Override
+  int replace(final int from, final int to, final int old, final int id) {
+    final int size = palette.size();
+    boolean found = false;
+    for(int i = 0; i < size; ++i) {
+      if(ids[i] == old) {
+        found = true;
+        break;
+      }
+    }
+    if(!found || old == id) return 0;
+    int p = -1;
+    int res = 0;
+    for(int i = from; i < to; ++i) {
+      if(ids[layout.get(data, i)] != old) {
+        continue;
+      }
+      if(p < 0) {
+        // the palette may be repacked
+        p = paletteIndex(id);
+      }
+      layout.set(data, i, p);
+      ++res;
+    }
+    if(res > 0) {
+      changed = true;
+    }
+    return res;
+  }
+
+  @Override
+  boolean isEmpty() {
+    final int size = palette.size();
+    boolean air = true;
+    for(int i = 0; i < size; ++i) {
+      if(ids[i] != Blocks.AIR.id) {
+        air = false;
+        break;
+      }
+    }
+    if(air) return true;
+    for(int i = 0; i < BLOCKS; ++i) {
+      if(ids[layout.get(data, i)] != Blocks.AIR.id) return false;
+    }
+    return true;
+  }
+
+  @Override
+  protected NibbleArray createData() {
+    return new NibbleArray(new NBTByteArray("Data", new byte[BLOCKS / 2]));
+  }
+
+  @Override
+  protected void writeIds() {
+    compact();
+    if(paletteChanged) {
+      record.add(new NBTList<NBTCompound>("Palette", NBTType.COMPOUND,
+          palette.toArray(new NBTCompound[palette.size()])));
+      paletteChanged = false;
+    }
+    record.add(new NBTLongArray("BlockStates", data.clone()));
+  }
+
+}
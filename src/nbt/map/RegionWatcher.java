@@ -0,0 +1,150 @@
+package nbt.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.world.level.chunk.storage.RegionFile;
+
+/**
+ * Watches a folder of region files for changes made by other programs, for
+ * example a server that is running on the same world. Changes are collected for
+ * a short time so that a region that is written in several steps is reported
+ * only once.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class RegionWatcher {
+
+  /**
+   * Is notified when a region file has changed.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  public interface Listener {
+
+    /**
+     * A region file has been created or modified.
+     * 
+     * @param regionFile The region file.
+     */
+    void regionChanged(File regionFile);
+
+  }
+
+  /** The time in milliseconds changes are collected before reporting them. */
+  private static final long SETTLE_TIME = 500;
+
+  private final File folder;
+
+  private final Listener listener;
+
+  private final WatchService service;
+
+  private final Thread thread;
+
+  private RegionWatcher(final File folder, final Listener listener,
+      final WatchService service) {
+    this.folder = folder;
+    this.listener = listener;
+    this.service = service;
+    thread = new Thread("region watcher") {
+
+      @Override
+      public void run() {
+        try {
+          watch();
+        } catch(final InterruptedException e) {
+          // closed
+        } catch(final ClosedWatchServiceException e) {
+          // closed
+        }
+      }
+
+    };
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Starts watching a folder.
+   * 
+   * @param folder The folder containing the region files.
+   * @param listener The listener.
+   * @return The watcher or <code>null</code> if the folder cannot be watched.
+   */
+  public static RegionWatcher watch(final File folder,
+      final Listener listener) {
+    try {
+      final WatchService service = FileSystems.getDefault().newWatchService();
+      folder.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+      final RegionWatcher w = new RegionWatcher(folder, listener, service);
+      w.thread.start();
+      return w;
+    } catch(final IOException e) {
+      System.err.println("cannot watch " + folder + ": " + e);
+      return null;
+    }
+  }
+
+  private void watch() throws InterruptedException {
+    final Set<File> changed = new LinkedHashSet<File>();
+    for(;;) {
+      WatchKey key = service.take();
+      // collect changes until the files settle
+      while(key != null) {
+        collect(key, changed);
+        key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+      }
+      for(final File f : changed) {
+        if(Thread.interrupted()) throw new InterruptedException();
+        listener.regionChanged(f);
+      }
+      changed.clear();
+    }
+  }
+
+  private void collect(final WatchKey key, final Set<File> changed) {
+    for(final WatchEvent<?> e : key.pollEvents()) {
+      if(e.kind() == StandardWatchEventKinds.OVERFLOW) {
+        final File[] all = folder.listFiles();
+        if(all == null) {
+          continue;
+        }
+        for(final File f : all) {
+          if(f.getName().endsWith(RegionFile.ANVIL_EXTENSION)) {
+            changed.add(f);
+          }
+        }
+        continue;
+      }
+      final String name = ((Path) e.context()).toString();
+      if(name.endsWith(RegionFile.ANVIL_EXTENSION)) {
+        changed.add(new File(folder, name));
+      }
+    }
+    key.reset();
+  }
+
+  /**
+   * Stops watching the folder.
+   */
+  public void close() {
+    thread.interrupt();
+    try {
+      service.close();
+    } catch(final IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+}
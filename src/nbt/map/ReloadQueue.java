@@ -0,0 +1,283 @@
+package nbt.map;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nbt.map.pos.ChunkPosition;
+
+/**
+ * A priority queue of chunk positions that are waiting to be reloaded. The
+ * chunk nearest to the focus is polled first. When the focus changes the whole
+ * queue is re-ranked. Every request is tagged with the viewport generation it
+ * was made in so that requests that were not renewed can be dropped. Requests
+ * can carry a bias that is added to their distance so that prefetched chunks
+ * are polled after the visible ones.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class ReloadQueue {
+
+  /**
+   * An entry of the queue.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Item {
+
+    /** The position of the chunk. */
+    final ChunkPosition pos;
+
+    /** The current priority. Smaller values are polled first. */
+    long key;
+
+    /** The index of the item in the heap. */
+    int index;
+
+    /** The viewport generation of the latest request. */
+    int generation;
+
+    /** The bias added to the distance to the focus. */
+    long bias;
+
+    Item(final ChunkPosition pos) {
+      this.pos = pos;
+    }
+
+  }
+
+  private final Map<ChunkPosition, Item> items =
+      new HashMap<ChunkPosition, Item>();
+
+  private Item[] heap = new Item[64];
+
+  private int size;
+
+  private int focusX;
+
+  private int focusZ;
+
+  /**
+   * Sets the focus of the queue. The focus is the position in blocks that
+   * should be loaded first. When the focus changes the queue is re-ranked.
+   * 
+   * @param x The x coordinate in blocks.
+   * @param z The z coordinate in blocks.
+   */
+  public synchronized void setFocus(final int x, final int z) {
+    if(x == focusX && z == focusZ) return;
+    focusX = x;
+    focusZ = z;
+    for(int i = 0; i < size; ++i) {
+      heap[i].key = priority(heap[i].pos) + heap[i].bias;
+    }
+    for(int i = size / 2 - 1; i >= 0; --i) {
+      siftDown(i);
+    }
+  }
+
+  private long priority(final ChunkPosition pos) {
+    final long dx = pos.x + 8 - focusX;
+    final long dz = pos.z + 8 - focusZ;
+    return dx * dx + dz * dz;
+  }
+
+  /**
+   * Adds a position to the queue. If the position is already in the queue only
+   * its generation is updated.
+   * 
+   * @param pos The position.
+   * @param generation The viewport generation of the request.
+   * @return Whether the position was added.
+   */
+  public boolean add(final ChunkPosition pos, final int generation) {
+    return add(pos, generation, 0);
+  }
+
+  /**
+   * Adds a position with a bias to the queue. If the position is already in
+   * the queue its generation is updated and the smaller bias is kept.
+   * 
+   * @param pos The position.
+   * @param generation The viewport generation of the request.
+   * @param bias The bias added to the squared distance to the focus. Positions
+   *          with a larger bias are polled later.
+   * @return Whether the position was added.
+   */
+  public synchronized boolean add(final ChunkPosition pos,
+      final int generation, final long bias) {
+    final Item old = items.get(pos);
+    if(old != null) {
+      old.generation = generation;
+      if(bias < old.bias) {
+        old.key -= old.bias - bias;
+        old.bias = bias;
+        siftUp(old.index);
+      }
+      return false;
+    }
+    final Item item = new Item(pos);
+    item.bias = bias;
+    item.key = priority(pos) + bias;
+    item.generation = generation;
+    items.put(pos, item);
+    if(size == heap.length) {
+      final Item[] tmp = new Item[size * 2];
+      System.arraycopy(heap, 0, tmp, 0, size);
+      heap = tmp;
+    }
+    item.index = size;
+    heap[size++] = item;
+    siftUp(item.index);
+    return true;
+  }
+
+  /**
+   * Removes all positions that were not requested in the given generation or
+   * later.
+   * 
+   * @param generation The oldest generation to keep.
+   * @return The number of removed positions.
+   */
+  public synchronized int removeOlderThan(final int generation) {
+    int keep = 0;
+    for(int i = 0; i < size; ++i) {
+      final Item item = heap[i];
+      if(item.generation - generation < 0) {
+        items.remove(item.pos);
+        continue;
+      }
+      item.index = keep;
+      heap[keep++] = item;
+    }
+    final int removed = size - keep;
+    for(int i = keep; i < size; ++i) {
+      heap[i] = null;
+    }
+    size = keep;
+    for(int i = size / 2 - 1; i >= 0; --i) {
+      siftDown(i);
+    }
+    return removed;
+  }
+
+  /**
+   * Removes the position with the highest priority.
+   * 
+   * @return The position nearest to the focus or <code>null</code> if the queue
+   *         is empty.
+   */
+  public synchronized ChunkPosition poll() {
+    if(size == 0) return null;
+    final Item top = heap[0];
+    removeAt(0);
+    return top.pos;
+  }
+
+  /**
+   * Removes a position from the queue.
+   * 
+   * @param pos The position.
+   * @return Whether the position was in the queue.
+   */
+  public synchronized boolean remove(final ChunkPosition pos) {
+    final Item item = items.get(pos);
+    if(item == null) return false;
+    removeAt(item.index);
+    return true;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param pos The position.
+   * @return Whether the position is in the queue.
+   */
+  public synchronized boolean contains(final ChunkPosition pos) {
+    return items.containsKey(pos);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the queue is empty.
+   */
+  public synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of positions in the queue.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Removes all positions.
+   */
+  public synchronized void clear() {
+    for(int i = 0; i < size; ++i) {
+      heap[i] = null;
+    }
+    size = 0;
+    items.clear();
+  }
+
+  private void removeAt(final int index) {
+    final Item item = heap[index];
+    items.remove(item.pos);
+    --size;
+    if(index != size) {
+      final Item last = heap[size];
+      heap[index] = last;
+      last.index = index;
+      heap[size] = null;
+      siftDown(index);
+      siftUp(last.index);
+    } else {
+      heap[size] = null;
+    }
+  }
+
+  private void siftUp(final int index) {
+    int i = index;
+    final Item item = heap[i];
+    while(i > 0) {
+      final int parent = (i - 1) >>> 1;
+      final Item p = heap[parent];
+      if(p.key <= item.key) {
+        break;
+      }
+      heap[i] = p;
+      p.index = i;
+      i = parent;
+    }
+    heap[i] = item;
+    item.index = i;
+  }
+
+  private void siftDown(final int index) {
+    int i = index;
+    final Item item = heap[i];
+    final int half = size >>> 1;
+    while(i < half) {
+      int child = 2 * i + 1;
+      final int right = child + 1;
+      if(right < size && heap[right].key < heap[child].key) {
+        child = right;
+      }
+      final Item c = heap[child];
+      if(item.key <= c.key) {
+        break;
+      }
+      heap[i] = c;
+      c.index = i;
+      i = child;
+    }
+    heap[i] = item;
+    item.index = i;
+  }
+
+}
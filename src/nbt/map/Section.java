@@ -0,0 +1,246 @@
+package nbt.map;
+
+import nbt.record.NBTByteArray;
+import nbt.record.NBTCompound;
+import nbt.record.NBTNumeric;
+import nbt.record.NBTRecord;
+import nbt.record.NibbleArray;
+
+/**
+ * A vertical section of 16 by 16 by 16 blocks. Sections give access to the
+ * block ids regardless of how they are stored in the record of the section.
+ * Changes are written back into the record by {@link #sync()}. The light
+ * values are accessed in place via {@link NibbleArray} views.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+abstract class Section {
+
+  /** The number of blocks in a section. */
+  static final int BLOCKS = 16 * 16 * 16;
+
+  /** The first data version that stores sections with a palette. */
+  static final int FLATTENING = 1451;
+
+  /**
+   * The first data version whose packed block states do not span multiple
+   * longs.
+   */
+  static final int UNSPANNED = 2529;
+
+  /**
+   * Getter.
+   * 
+   * @param root The record of the chunk.
+   * @return The data version of the chunk or 0 if it has none.
+   */
+  static int getDataVersion(final NBTCompound root) {
+    final NBTRecord rec = root.get("DataVersion");
+    if(!(rec instanceof NBTNumeric)) return 0;
+    return ((NBTNumeric<?>) rec).getPayload().intValue();
+  }
+
+  /**
+   * Decodes a section.
+   * 
+   * @param record The record of the section.
+   * @param dataVersion The data version of the chunk.
+   * @return The section.
+   */
+  static Section decode(final NBTCompound record, final int dataVersion) {
+    if(dataVersion < FLATTENING) return new LegacySection(record);
+    return new PaletteSection(record, dataVersion < UNSPANNED);
+  }
+
+  /** The record of the section. */
+  protected final NBTCompound record;
+
+  /** Whether the block ids have changed since the last synchronization. */
+  protected boolean changed;
+
+  private NibbleArray data;
+
+  private NibbleArray blockLight;
+
+  private NibbleArray skyLight;
+
+  /**
+   * Creates a section.
+   * 
+   * @param record The record of the section.
+   */
+  protected Section(final NBTCompound record) {
+    this.record = record;
+  }
+
+  /**
+   * Computes the index of a block.
+   * 
+   * @param x The x coordinate within the chunk.
+   * @param y The y coordinate within the section.
+   * @param z The z coordinate within the chunk.
+   * @return The index of the block.
+   */
+  static int index(final int x, final int y, final int z) {
+    return (y << 8) | (z << 4) | x;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param index The index of the block.
+   * @return The block id.
+   */
+  abstract int getId(int index);
+
+  /**
+   * Setter.
+   * 
+   * @param index The index of the block.
+   * @param id The block id.
+   */
+  abstract void setId(int index, int id);
+
+  /**
+   * Fills a range of blocks with the same id.
+   * 
+   * @param from The first index.
+   * @param to The index after the last block.
+   * @param id The block id.
+   */
+  protected abstract void fillIds(int from, int to, int id);
+
+  /**
+   * Replaces blocks in a range.
+   * 
+   * @param from The first index.
+   * @param to The index after the last block.
+   * @param old The id of the blocks to replace.
+   * @param id The new block id.
+   * @return The number of replaced blocks.
+   */
+  abstract int replace(int from, int to, int old, int id);
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the section consists of air only.
+   */
+  abstract boolean isEmpty();
+
+  /**
+   * Writes the block ids back into the record of the section. This method is
+   * only called when the block ids have changed.
+   */
+  protected abstract void writeIds();
+
+  /**
+   * Creates a view of a nibble array of the section. A missing or malformed
+   * array reads as zeros. It is replaced in the record of the section only
+   * when the view is changed.
+   * 
+   * @param name The name of the array.
+   * @return The view.
+   */
+  protected final NibbleArray nibbles(final String name) {
+    final NBTRecord rec = record.get(name);
+    final NBTByteArray arr =
+        rec instanceof NBTByteArray ? (NBTByteArray) rec : null;
+    if(arr != null && arr.getLength() == BLOCKS / 2) return new NibbleArray(
+        arr);
+    if(rec != null) {
+      System.err.println("ignoring malformed " + name + " record: "
+          + rec.getPayloadString());
+    }
+    return new NibbleArray(new NBTByteArray(name, new byte[BLOCKS / 2]),
+        record);
+  }
+
+  /**
+   * Creates the view of the metadata.
+   * 
+   * @return The view.
+   */
+  protected NibbleArray createData() {
+    return nibbles("Data");
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The metadata of the blocks.
+   */
+  final NibbleArray getData() {
+    if(data == null) {
+      data = createData();
+    }
+    return data;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The light emitted by blocks.
+   */
+  final NibbleArray getBlockLight() {
+    if(blockLight == null) {
+      blockLight = nibbles("BlockLight");
+    }
+    return blockLight;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The light of the sky.
+   */
+  final NibbleArray getSkyLight() {
+    if(skyLight == null) {
+      skyLight = nibbles("SkyLight");
+    }
+    return skyLight;
+  }
+
+  /**
+   * Attaches the light arrays to the record of the section. Changing the light
+   * does not change the structure of the record afterwards.
+   */
+  final void attachLight() {
+    getBlockLight().attach();
+    getSkyLight().attach();
+  }
+
+  /**
+   * Fills a range of blocks.
+   * 
+   * @param from The first index.
+   * @param to The index after the last block.
+   * @param id The block id.
+   * @param meta The metadata of the blocks.
+   */
+  final void fill(final int from, final int to, final int id, final int meta) {
+    fillIds(from, to, id);
+    getData().fill(from, to, meta);
+    changed = true;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the section has changes that are not synchronized with its
+   *         record.
+   */
+  final boolean hasChanged() {
+    return changed;
+  }
+
+  /**
+   * Writes the changes back into the record of the section.
+   */
+  final void sync() {
+    if(!changed) return;
+    writeIds();
+    changed = false;
+  }
+
+}
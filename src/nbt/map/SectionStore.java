@@ -0,0 +1,227 @@
+package nbt.map;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nbt.record.NBTByteArray;
+import nbt.record.NBTCompound;
+import nbt.record.NBTRecord;
+
+/**
+ * Deduplicates the arrays of sections. Generated worlds contain many sections
+ * with identical content, for example solid stone, air or ocean water. Arrays
+ * with equal content are found by their hash and replaced by one shared array.
+ * A shared array is copied before a record changes it. The decoded block ids
+ * of shared block arrays are shared as well. Shared arrays are referenced
+ * weakly and vanish together with the last chunk using them. The store is
+ * split into stripes with their own locks so that chunks can be loaded in
+ * parallel.
+ * <p>
+ * The store can be disabled via the system property
+ * <code>nbt.section.shared</code>.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class SectionStore {
+
+  /** The names of the arrays that are deduplicated. */
+  private static final String[] ARRAYS = { "Blocks", "AddBlocks", "Data",
+      "BlockLight", "SkyLight"};
+
+  /** The store or <code>null</code> if sharing is disabled. */
+  private static final SectionStore INSTANCE = Boolean.parseBoolean(
+      System.getProperty("nbt.section.shared", "true")) ? new SectionStore()
+      : null;
+
+  /**
+   * Getter.
+   * 
+   * @return The store or <code>null</code> if sharing is disabled.
+   */
+  public static SectionStore getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * A weak reference to a shared array.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Shared extends WeakReference<byte[]> {
+
+    /** The hash of the content. */
+    final int hash;
+
+    /** The next array with the same hash. */
+    Shared next;
+
+    Shared(final byte[] arr, final int hash,
+        final ReferenceQueue<byte[]> queue) {
+      super(arr, queue);
+      this.hash = hash;
+    }
+
+  }
+
+  /**
+   * A part of the store guarded by its own lock. Arrays are assigned to
+   * stripes by their hash so that loaders rarely wait for each other.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Stripe {
+
+    /** The shared arrays by the hash of their content. */
+    final Map<Integer, Shared> arrays = new HashMap<Integer, Shared>();
+
+    final ReferenceQueue<byte[]> queue = new ReferenceQueue<byte[]>();
+
+    /** The decoded block ids by their shared block array. */
+    final Map<byte[], short[]> ids = new WeakHashMap<byte[], short[]>();
+
+    Stripe() {
+      // nothing to do
+    }
+
+  }
+
+  /** The number of stripes. Must be a power of two. */
+  private static final int STRIPES = 64;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  private final AtomicInteger distinct = new AtomicInteger();
+
+  private final AtomicLong shared = new AtomicLong();
+
+  private final AtomicLong savedBytes = new AtomicLong();
+
+  private SectionStore() {
+    for(int i = 0; i < STRIPES; ++i) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param hash The hash.
+   * @return The stripe responsible for the hash.
+   */
+  private Stripe getStripe(final int hash) {
+    return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * Deduplicates the arrays of a section.
+   * 
+   * @param section The record of the section.
+   */
+  void share(final NBTCompound section) {
+    for(final String name : ARRAYS) {
+      final NBTRecord rec = section.get(name);
+      if(rec instanceof NBTByteArray) {
+        share((NBTByteArray) rec);
+      }
+    }
+  }
+
+  /**
+   * Deduplicates an array.
+   * 
+   * @param rec The record of the array.
+   */
+  private void share(final NBTByteArray rec) {
+    final byte[] arr = rec.share();
+    final Integer hash = Arrays.hashCode(arr);
+    final Stripe stripe = getStripe(hash);
+    synchronized(stripe) {
+      purge(stripe);
+      final Shared first = stripe.arrays.get(hash);
+      for(Shared s = first; s != null; s = s.next) {
+        final byte[] other = s.get();
+        if(other == arr) return;
+        if(other != null && Arrays.equals(arr, other)) {
+          rec.share(other);
+          shared.incrementAndGet();
+          savedBytes.addAndGet(arr.length);
+          return;
+        }
+      }
+      final Shared s = new Shared(arr, hash, stripe.queue);
+      s.next = first;
+      stripe.arrays.put(hash, s);
+    }
+    distinct.incrementAndGet();
+  }
+
+  /**
+   * Removes the references of collected arrays. The lock of the stripe must
+   * be held.
+   * 
+   * @param stripe The stripe.
+   */
+  private void purge(final Stripe stripe) {
+    for(;;) {
+      final Shared gone = (Shared) stripe.queue.poll();
+      if(gone == null) return;
+      final Integer hash = gone.hash;
+      Shared prev = null;
+      for(Shared s = stripe.arrays.get(hash); s != null; s = s.next) {
+        if(s != gone) {
+          prev = s;
+          continue;
+        }
+        if(prev != null) {
+          prev.next = s.next;
+        } else if(s.next != null) {
+          stripe.arrays.put(hash, s.next);
+        } else {
+          stripe.arrays.remove(hash);
+        }
+        distinct.decrementAndGet();
+        break;
+      }
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param blocks A shared block array.
+   * @return The decoded block ids of the array. They must not be changed.
+   */
+  short[] getIds(final byte[] blocks) {
+    final Stripe stripe = getStripe(System.identityHashCode(blocks));
+    synchronized(stripe) {
+      short[] res = stripe.ids.get(blocks);
+      if(res == null) {
+        res = new short[blocks.length];
+        for(int i = 0; i < res.length; ++i) {
+          res[i] = (short) (blocks[i] & 0xff);
+        }
+        stripe.ids.put(blocks, res);
+      }
+      return res;
+    }
+  }
+
+  @Override
+  public String toString() {
+    for(final Stripe stripe : stripes) {
+      synchronized(stripe) {
+        purge(stripe);
+      }
+    }
+    return "section store: " + distinct.get() + " distinct arrays, "
+        + shared.get() + " shared, " + (savedBytes.get() >> 20)
+        + " MB saved while loading";
+  }
+
+}
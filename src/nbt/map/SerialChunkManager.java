@@ -1,16 +1,14 @@
 package nbt.map;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import nbt.map.pos.ChunkInFilePosition;
 import nbt.map.pos.ChunkPosition;
 import nbt.map.pos.WorldPosition;
 import nbt.read.MapReader;
-import net.minecraft.world.level.chunk.storage.RegionFile;
+import nbt.record.NBTCompound;
 
 /**
  * A chunk manager that does not rely on threads but ensures that a chunk will
@@ -43,24 +41,16 @@ public class SerialChunkManager {
    */
   public void setFolder(final File folder, final boolean clearCache) {
     chunks.clear();
+    reload.clear();
+    otherPos.clear();
     if(clearCache) {
       MapReader.clearCache();
     }
-    final File[] files = folder.listFiles(new FileFilter() {
-
-      @Override
-      public boolean accept(final File f) {
-        return f.isFile()
-            && f.getName().endsWith(RegionFile.ANVIL_EXTENSION);
-      }
-
-    });
-    for(final File f : files) {
-      final MapReader r = MapReader.getForFile(f);
-      final List<ChunkInFilePosition> chunkList = r.getChunks();
-      for(final ChunkInFilePosition p : chunkList) {
-        final Chunk chunk = new Chunk(r.read(p), f, p);
-        unloadChunk(chunk);
+    final ChunkIndex index = ChunkIndex.load(folder);
+    for(final File f : index.getRegionFiles()) {
+      for(final ChunkIndex.Entry e : index.getEntries(f)) {
+        reload.put(e.pos, e.file);
+        otherPos.put(e.pos, e.inFilePos);
       }
     }
   }
@@ -90,6 +80,30 @@ public class SerialChunkManager {
     return getChunk(pos.getPosOfChunk());
   }
 
+  /**
+   * Creates a light engine for the chunks of this manager. Chunks are unloaded
+   * after they have been relit.
+   * 
+   * @param pool The pool that relights the chunks.
+   * @return The light engine.
+   */
+  public LightEngine createLightEngine(final WorkerPool pool) {
+    return new LightEngine(new LightEngine.ChunkSource() {
+
+      @Override
+      public Chunk getChunk(final int chunkX, final int chunkZ) {
+        return SerialChunkManager.this.getChunk(new ChunkPosition(
+            chunkX * 16, chunkZ * 16));
+      }
+
+      @Override
+      public void release(final Chunk chunk) {
+        unloadChunk(chunk);
+      }
+
+    }, pool);
+  }
+
   /**
    * Tests whether a chunk at the given position exists.
    * 
@@ -126,8 +140,10 @@ public class SerialChunkManager {
     if(f == null) return;
     final ChunkInFilePosition op = otherPos.get(pos);
     final MapReader r = MapReader.getForFile(f);
-    final Chunk chunk = new Chunk(r.read(op), f, op);
-    chunks.put(pos, chunk);
+    final NBTCompound root = r.read(op);
+    if(root != null) {
+      chunks.put(pos, new Chunk(root, f, op));
+    }
     reload.remove(pos);
     otherPos.remove(pos);
   }
@@ -13,9 +13,11 @@ public interface UpdateReceiver {
   void somethingChanged();
 
   /**
-   * Advises the update receiver to get rid of as much memory as possible
-   * without allocating additional memory.
+   * A chunk has been unloaded. The update receiver should drop all references
+   * to the chunk.
+   * 
+   * @param chunk The chunk.
    */
-  void memoryPanic();
+  void chunkUnloaded(Chunk chunk);
 
 }
@@ -0,0 +1,253 @@
+package nbt.map;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared pool of worker threads. There is one pool for loading chunks, one
+ * pool for painting chunks and one pool for relighting chunks. The pools are
+ * shared between all users and are shut down when the last user releases
+ * them. Idle threads terminate after a short time so that an idle pool does
+ * not hold any threads.
+ * <p>
+ * The pools can be configured via system properties:
+ * <ul>
+ * <li><code>nbt.loader.threads</code> The number of loader threads.</li>
+ * <li><code>nbt.loader.virtual</code> Whether loaders run in virtual threads.
+ * Virtual threads are only used when the runtime supports them.</li>
+ * <li><code>nbt.painter.threads</code> The number of painter threads.</li>
+ * <li><code>nbt.light.threads</code> The number of light threads.</li>
+ * </ul>
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class WorkerPool {
+
+  /** The time in seconds after which idle threads terminate. */
+  private static final long KEEP_ALIVE = 10;
+
+  private static WorkerPool loader;
+
+  private static WorkerPool painter;
+
+  private static WorkerPool light;
+
+  /**
+   * Acquires the shared loader pool. The pool must be released via
+   * {@link #release()} when it is not needed anymore.
+   * 
+   * @return The loader pool.
+   */
+  public static synchronized WorkerPool acquireLoader() {
+    if(loader == null) {
+      final int cpus = Runtime.getRuntime().availableProcessors();
+      final ExecutorService virtual = Boolean.getBoolean("nbt.loader.virtual")
+          ? createVirtualExecutor() : null;
+      final int threads = Integer.getInteger("nbt.loader.threads",
+          virtual != null ? cpus * 4 : Math.max(cpus, 2));
+      loader = new WorkerPool("chunk loader", threads, virtual);
+    }
+    ++loader.users;
+    return loader;
+  }
+
+  /**
+   * Acquires the shared painter pool. The pool must be released via
+   * {@link #release()} when it is not needed anymore.
+   * 
+   * @return The painter pool.
+   */
+  public static synchronized WorkerPool acquirePainter() {
+    if(painter == null) {
+      final int cpus = Runtime.getRuntime().availableProcessors();
+      final int threads = Integer.getInteger("nbt.painter.threads",
+          Math.max(cpus, 2));
+      painter = new WorkerPool("image loader", threads, null);
+    }
+    ++painter.users;
+    return painter;
+  }
+
+  /**
+   * Acquires the shared light pool. Relighting has its own pool so that it
+   * does not wait behind pending chunk loads. The pool must be released via
+   * {@link #release()} when it is not needed anymore.
+   * 
+   * @return The light pool.
+   */
+  public static synchronized WorkerPool acquireLight() {
+    if(light == null) {
+      final int cpus = Runtime.getRuntime().availableProcessors();
+      final int threads = Integer.getInteger("nbt.light.threads",
+          Math.max(cpus, 2));
+      light = new WorkerPool("light engine", threads, null);
+    }
+    ++light.users;
+    return light;
+  }
+
+  private final String name;
+
+  private final int parallelism;
+
+  private final ExecutorService executor;
+
+  private final boolean virtual;
+
+  private final long created = System.nanoTime();
+
+  private final AtomicInteger active = new AtomicInteger();
+
+  private final AtomicLong completed = new AtomicLong();
+
+  private final AtomicLong busyNanos = new AtomicLong();
+
+  private int users;
+
+  private WorkerPool(final String name, final int parallelism,
+      final ExecutorService virtualExecutor) {
+    this.name = name;
+    this.parallelism = Math.max(parallelism, 1);
+    if(virtualExecutor != null) {
+      executor = virtualExecutor;
+      virtual = true;
+    } else {
+      final AtomicInteger num = new AtomicInteger();
+      final ThreadPoolExecutor tpe = new ThreadPoolExecutor(
+          this.parallelism, this.parallelism, KEEP_ALIVE, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+              final Thread t = new Thread(r, name + " "
+                  + num.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+
+          });
+      tpe.allowCoreThreadTimeOut(true);
+      executor = tpe;
+      virtual = false;
+    }
+    System.out.println("Using " + this.parallelism + " " + name
+        + (virtual ? " (virtual threads)" : ""));
+  }
+
+  private static ExecutorService createVirtualExecutor() {
+    try {
+      final Method m =
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke(null);
+    } catch(final Exception e) {
+      System.err.println("virtual threads are not supported");
+      return null;
+    }
+  }
+
+  /**
+   * Releases the pool. When the last user releases the pool it is shut down.
+   * Tasks that are already queued are still executed.
+   */
+  public void release() {
+    synchronized(WorkerPool.class) {
+      if(users <= 0) throw new IllegalStateException("pool not acquired");
+      if(--users > 0) return;
+      if(loader == this) {
+        loader = null;
+      }
+      if(painter == this) {
+        painter = null;
+      }
+      if(light == this) {
+        light = null;
+      }
+    }
+    executor.shutdown();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The maximal number of tasks that are executed concurrently.
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Executes a task. Tasks passed to a pool that is already shut down are
+   * ignored.
+   * 
+   * @param task The task.
+   */
+  public void execute(final Runnable task) {
+    try {
+      executor.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          final long start = System.nanoTime();
+          active.incrementAndGet();
+          try {
+            task.run();
+          } finally {
+            active.decrementAndGet();
+            busyNanos.addAndGet(System.nanoTime() - start);
+            completed.incrementAndGet();
+          }
+        }
+
+      });
+    } catch(final RejectedExecutionException e) {
+      // the pool is shut down
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of tasks currently running.
+   */
+  public int getActiveCount() {
+    return active.get();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of completed tasks.
+   */
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The fraction of the available thread time since the creation of
+   *         the pool that was spent running tasks.
+   */
+  public double getUtilization() {
+    final long elapsed = System.nanoTime() - created;
+    if(elapsed <= 0) return 0;
+    return Math.min(1.0, (double) busyNanos.get()
+        / ((double) elapsed * parallelism));
+  }
+
+  @Override
+  public String toString() {
+    return name + ": " + getActiveCount() + "/" + parallelism + " active, "
+        + getCompletedCount() + " tasks, "
+        + Math.round(getUtilization() * 100.0) + "% utilization";
+  }
+
+}
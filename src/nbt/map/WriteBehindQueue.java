@@ -0,0 +1,413 @@
+package nbt.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nbt.map.pos.ChunkPosition;
+
+/**
+ * Writes changed chunks in the background. Repeated saves of the same chunk
+ * are coalesced and the chunks of one region file are written together. The
+ * number of pending chunks is bounded. When the backlog is full the thread
+ * that enqueues a chunk writes a region itself. Pinned chunks are deferred
+ * until they are released via {@link #release(Chunk)}. Pending chunks,
+ * including pinned ones, are written by {@link #flush()} and before the
+ * virtual machine shuts down. Chunks whose write fails stay pending and are
+ * written again with the next enqueued chunk or the next flush.
+ * <p>
+ * The size of the backlog can be configured via the system property
+ * <code>nbt.write.backlog</code>.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class WriteBehindQueue {
+
+  /**
+   * Is notified when a chunk has been written.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  public interface Listener {
+
+    /**
+     * A chunk has been written. The chunk may have been changed again since.
+     * 
+     * @param chunk The chunk.
+     */
+    void chunkWritten(Chunk chunk);
+
+  }
+
+  /**
+   * A chunk waiting to be written.
+   * 
+   * @author Joschi <josua.krause@googlemail.com>
+   */
+  private static final class Pending {
+
+    /** The chunk. */
+    final Chunk chunk;
+
+    /** The estimated size of the chunk. */
+    final long size;
+
+    Pending(final Chunk chunk) {
+      this.chunk = chunk;
+      size = chunk.getEstimatedSize();
+    }
+
+  }
+
+  /** The pending chunks grouped by their region file. */
+  private final Map<File, LinkedHashMap<ChunkPosition, Pending>> regions =
+      new LinkedHashMap<File, LinkedHashMap<ChunkPosition, Pending>>();
+
+  /** The pinned chunks whose write is deferred. */
+  private final Map<ChunkPosition, Pending> deferred =
+      new HashMap<ChunkPosition, Pending>();
+
+  /** The chunks whose last write has failed. */
+  private final Map<ChunkPosition, Pending> failed =
+      new HashMap<ChunkPosition, Pending>();
+
+  /** The chunks that are currently written. */
+  private final Map<ChunkPosition, Pending> writing =
+      new HashMap<ChunkPosition, Pending>();
+
+  private final WorkerPool pool;
+
+  private final Listener listener;
+
+  private final int capacity;
+
+  private final Thread shutdownHook;
+
+  private boolean scheduled;
+
+  private int pendingChunks;
+
+  private long pendingBytes;
+
+  private long written;
+
+  private long coalesced;
+
+  private long failures;
+
+  /**
+   * Creates a write behind queue.
+   * 
+   * @param pool The pool that writes the chunks.
+   * @param listener The listener or <code>null</code>.
+   */
+  public WriteBehindQueue(final WorkerPool pool, final Listener listener) {
+    this.pool = pool;
+    this.listener = listener;
+    capacity = Math.max(Integer.getInteger("nbt.write.backlog", 256), 1);
+    shutdownHook = new Thread("chunk writer shutdown") {
+
+      @Override
+      public void run() {
+        final int lost = flush();
+        if(lost > 0) {
+          System.err.println(lost + " changed chunks could not be written");
+        }
+      }
+
+    };
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  /**
+   * Enqueues a chunk to be written. Nothing happens when the chunk is already
+   * waiting to be written.
+   * 
+   * @param chunk The chunk.
+   */
+  public void enqueue(final Chunk chunk) {
+    final ChunkPosition pos = chunk.getPos();
+    final boolean full;
+    synchronized(this) {
+      retryFailed();
+      LinkedHashMap<ChunkPosition, Pending> region =
+          regions.get(chunk.getFile());
+      if(region == null) {
+        region = new LinkedHashMap<ChunkPosition, Pending>();
+        regions.put(chunk.getFile(), region);
+      }
+      final Pending old = region.get(pos);
+      final Pending def = deferred.get(pos);
+      if((old != null && old.chunk == chunk)
+          || (def != null && def.chunk == chunk)) {
+        ++coalesced;
+        if(region.isEmpty()) {
+          regions.remove(chunk.getFile());
+        }
+        return;
+      }
+      final Pending p = new Pending(chunk);
+      region.put(pos, p);
+      if(old != null) {
+        pendingBytes -= old.size;
+      } else {
+        ++pendingChunks;
+      }
+      pendingBytes += p.size;
+      full = pendingChunks > capacity;
+    }
+    if(full) {
+      writeNextRegion(false);
+    }
+    schedule();
+  }
+
+  /**
+   * Releases a chunk that was unpinned. When its write has been deferred it
+   * is enqueued again.
+   * 
+   * @param chunk The chunk.
+   */
+  public void release(final Chunk chunk) {
+    synchronized(this) {
+      final ChunkPosition pos = chunk.getPos();
+      final Pending p = deferred.get(pos);
+      if(p == null || p.chunk != chunk) return;
+      deferred.remove(pos);
+      requeue(p);
+    }
+    schedule();
+  }
+
+  /**
+   * Puts the chunks whose write has failed back into their regions. The caller
+   * must hold the lock.
+   */
+  private void retryFailed() {
+    for(final Pending p : failed.values()) {
+      requeue(p);
+    }
+    failed.clear();
+  }
+
+  /**
+   * Puts a deferred chunk back into its region. The caller must hold the lock.
+   * 
+   * @param p The chunk.
+   */
+  private void requeue(final Pending p) {
+    final File file = p.chunk.getFile();
+    LinkedHashMap<ChunkPosition, Pending> region = regions.get(file);
+    if(region == null) {
+      region = new LinkedHashMap<ChunkPosition, Pending>();
+      regions.put(file, region);
+    }
+    final ChunkPosition pos = p.chunk.getPos();
+    final Pending old = region.get(pos);
+    if(old != null && old.chunk == p.chunk) {
+      // the chunk was enqueued again in the mean time
+      --pendingChunks;
+      pendingBytes -= p.size;
+      return;
+    }
+    region.put(pos, p);
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param file The region file.
+   * @param pos The position.
+   * @return The chunk if it is waiting to be written or currently written.
+   */
+  public synchronized Chunk get(final File file, final ChunkPosition pos) {
+    final LinkedHashMap<ChunkPosition, Pending> region = regions.get(file);
+    if(region != null) {
+      final Pending p = region.get(pos);
+      if(p != null) return p.chunk;
+    }
+    final Pending d = deferred.get(pos);
+    if(d != null) return d.chunk;
+    final Pending f = failed.get(pos);
+    if(f != null) return f.chunk;
+    final Pending p = writing.get(pos);
+    return p != null ? p.chunk : null;
+  }
+
+  private synchronized void schedule() {
+    if(scheduled || regions.isEmpty()) return;
+    scheduled = true;
+    pool.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          while(writeNextRegion(false)) {
+            // write until the queue is empty
+          }
+        } finally {
+          synchronized(WriteBehindQueue.this) {
+            scheduled = false;
+          }
+        }
+        // chunks may have been added after the last region
+        schedule();
+      }
+
+    });
+  }
+
+  /**
+   * Writes all pending chunks of the region that has been waiting the longest.
+   * 
+   * @param force Whether pinned chunks are written as well. Otherwise they are
+   *          deferred.
+   * @return Whether there was a region to write.
+   */
+  private boolean writeNextRegion(final boolean force) {
+    final List<Pending> batch;
+    synchronized(this) {
+      final Iterator<LinkedHashMap<ChunkPosition, Pending>> it =
+          regions.values().iterator();
+      if(!it.hasNext()) return false;
+      final Collection<Pending> region = it.next().values();
+      it.remove();
+      batch = new ArrayList<Pending>(region.size());
+      for(final Pending p : region) {
+        if(!force && p.chunk.isPinned()) {
+          deferred.put(p.chunk.getPos(), p);
+          continue;
+        }
+        batch.add(p);
+        writing.put(p.chunk.getPos(), p);
+      }
+    }
+    for(final Pending p : batch) {
+      boolean ok = false;
+      try {
+        p.chunk.save();
+        ok = true;
+      } catch(final IOException e) {
+        System.err.println("could not write chunk " + p.chunk.getPos()
+            + " of " + p.chunk.getFile() + ": " + e);
+      } finally {
+        synchronized(this) {
+          final ChunkPosition pos = p.chunk.getPos();
+          if(writing.get(pos) == p) {
+            writing.remove(pos);
+          }
+          if(ok) {
+            --pendingChunks;
+            pendingBytes -= p.size;
+            ++written;
+          } else {
+            // kept pending until the next retry
+            failed.put(pos, p);
+            ++failures;
+          }
+          notifyAll();
+        }
+      }
+      if(ok && listener != null) {
+        listener.chunkWritten(p.chunk);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes all pending chunks including pinned ones. The method returns when
+   * every chunk that was enqueued before the call has been written or has
+   * failed to be written. Chunks that failed before are tried once more.
+   * 
+   * @return The number of chunks that could not be written. They stay pending.
+   */
+  public int flush() {
+    synchronized(this) {
+      retryFailed();
+    }
+    for(;;) {
+      synchronized(this) {
+        for(final Pending p : deferred.values()) {
+          requeue(p);
+        }
+        deferred.clear();
+      }
+      while(writeNextRegion(true)) {
+        // write until the queue is empty
+      }
+      synchronized(this) {
+        if(pendingChunks <= failed.size()) return failed.size();
+        if(regions.isEmpty() && deferred.isEmpty()) {
+          // wait for writes of other threads
+          try {
+            wait();
+          } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed.size();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes all pending chunks and removes the shutdown hook. Chunks that are
+   * enqueued afterwards are still written but no longer on shutdown. The hook
+   * is kept when chunks could not be written so that they are tried again.
+   * 
+   * @return The number of chunks that could not be written.
+   */
+  public int close() {
+    final int lost = flush();
+    if(lost > 0) return lost;
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch(final IllegalStateException e) {
+      // already shutting down
+    }
+    return 0;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of chunks waiting to be written.
+   */
+  public synchronized int getPendingChunks() {
+    return pendingChunks;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The estimated size of the chunks waiting to be written.
+   */
+  public synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of written chunks.
+   */
+  public synchronized long getWrittenChunks() {
+    return written;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "chunk writer: " + pendingChunks + " pending chunks, "
+        + (pendingBytes >> 10) + " KB pending, " + deferred.size()
+        + " pinned, " + written + " written, " + coalesced + " coalesced, "
+        + failed.size() + " failed (" + failures + " failures)";
+  }
+
+}
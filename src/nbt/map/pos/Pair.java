@@ -29,7 +29,9 @@ class Pair {
 
   @Override
   public int hashCode() {
-    return x * 31 + z;
+    // chunk positions are multiples of 16 so the low bits must be mixed in
+    final int h = (x * 0x9e3779b9 + z) * 0x85ebca6b;
+    return h ^ (h >>> 16);
   }
 
   @Override
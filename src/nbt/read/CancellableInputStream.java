@@ -0,0 +1,53 @@
+package nbt.read;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An input stream that throws an {@link InterruptedIOException} as soon as its
+ * {@link ReadTicket} is cancelled.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public class CancellableInputStream extends FilterInputStream {
+
+  private final ReadTicket ticket;
+
+  /**
+   * Creates a cancellable input stream.
+   * 
+   * @param in The underlying stream.
+   * @param ticket The ticket.
+   */
+  public CancellableInputStream(final InputStream in, final ReadTicket ticket) {
+    super(in);
+    if(ticket == null) throw new NullPointerException("ticket");
+    this.ticket = ticket;
+  }
+
+  private void check() throws InterruptedIOException {
+    if(ticket.isCancelled()) throw new InterruptedIOException("cancelled");
+  }
+
+  @Override
+  public int read() throws IOException {
+    check();
+    return super.read();
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+    check();
+    return super.read(b, off, len);
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    check();
+    return super.skip(n);
+  }
+
+}
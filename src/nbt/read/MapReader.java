@@ -3,13 +3,17 @@ package nbt.read;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import nbt.map.pos.ChunkInFilePosition;
+import nbt.map.pos.ChunkPosition;
 import nbt.record.NBTCompound;
+import nbt.record.NBTNumeric;
 import nbt.record.NBTRecord;
 import nbt.record.NBTType;
 import nbt.write.NBTWriter;
@@ -41,6 +45,42 @@ public final class MapReader {
     }
   }
 
+  /**
+   * Getter.
+   * 
+   * @param file The file.
+   * @return The cached reader for the given file or <code>null</code> if there
+   *         is none.
+   */
+  public static MapReader getCached(final File file) {
+    synchronized(CACHE) {
+      return CACHE.get(file);
+    }
+  }
+
+  /**
+   * Removes the reader of the given file from the cache and retires it. This
+   * is needed when the file was changed by someone else since the reader knows
+   * only the old header. The file of the reader is closed as soon as the
+   * running reads and writes of the reader have finished. Calls to a retired
+   * reader are passed on to the new reader of the file.
+   * 
+   * @param file The file.
+   */
+  public static void invalidate(final File file) {
+    final MapReader r;
+    synchronized(CACHE) {
+      r = CACHE.remove(file);
+    }
+    if(r == null) return;
+    synchronized(r.uses) {
+      r.retired = true;
+      if(r.users == 0) {
+        r.closeSource();
+      }
+    }
+  }
+
   /**
    * Clears the map reader cache.
    */
@@ -50,38 +90,162 @@ public final class MapReader {
     }
   }
 
+  private final File file;
+
   private final RegionFile regionSource;
 
+  /** Guards the number of users and the state of the reader. */
+  private final Object uses = new Object();
+
+  /** The number of running calls that use the region file. */
+  private int users;
+
+  /** Whether the reader has been removed from the cache. */
+  private boolean retired;
+
+  /** Whether the region file has been closed. */
+  private boolean closed;
+
+  /** The modification date of the file after the last write. */
+  private volatile long writtenModified = -1;
+
+  /** The length of the file after the last write. */
+  private volatile long writtenLength = -1;
+
+  private final boolean hasRegionPos;
+
+  private final int regionX;
+
+  private final int regionZ;
+
   private MapReader(final File regionFile) {
+    file = regionFile;
     regionSource = new RegionFile(regionFile);
+    final int[] pos = getRegionPosition(regionFile);
+    hasRegionPos = pos != null;
+    regionX = hasRegionPos ? pos[0] : 0;
+    regionZ = hasRegionPos ? pos[1] : 0;
+  }
+
+  /**
+   * Registers a call that uses the region file.
+   * 
+   * @return Whether the region file is still open. Otherwise the call must be
+   *         passed on to the current reader of the file.
+   */
+  private boolean enter() {
+    synchronized(uses) {
+      if(closed) return false;
+      ++users;
+      return true;
+    }
+  }
+
+  /**
+   * Ends a call that uses the region file. The last call of a retired reader
+   * closes the file.
+   */
+  private void exit() {
+    synchronized(uses) {
+      if(--users == 0 && retired) {
+        closeSource();
+      }
+    }
+  }
+
+  /**
+   * Closes the region file. The caller must hold the lock of {@link #uses}.
+   */
+  private void closeSource() {
+    if(closed) return;
+    closed = true;
+    try {
+      regionSource.close();
+    } catch(final IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Parses the region coordinates from the name of a region file. Region files
+   * are named <code>r.x.z.mca</code>.
+   * 
+   * @param regionFile The region file.
+   * @return The x and z region coordinates or <code>null</code> if the name
+   *         does not follow the naming scheme.
+   */
+  public static int[] getRegionPosition(final File regionFile) {
+    final String[] parts = regionFile.getName().split("\\.");
+    if(parts.length != 4 || !parts[0].equals("r")) return null;
+    try {
+      return new int[] { Integer.parseInt(parts[1]),
+          Integer.parseInt(parts[2])};
+    } catch(final NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Copies the header of the region file as it is known to this reader.
+   * 
+   * @param offsets The array receiving the raw sector offsets.
+   * @param timestamps The array receiving the timestamps.
+   */
+  public void getHeader(final int[] offsets, final int[] timestamps) {
+    if(!enter()) {
+      getForFile(file).getHeader(offsets, timestamps);
+      return;
+    }
+    try {
+      regionSource.getHeader(offsets, timestamps);
+    } finally {
+      exit();
+    }
   }
 
   /**
    * Getter.
    * 
-   * @return Creates a list of chunks in this region file.
+   * @return Creates a list of chunks in this region file. Only the header of
+   *         the region file is inspected.
    */
   public synchronized List<ChunkInFilePosition> getChunks() {
-    final List<ChunkInFilePosition> res = new ArrayList<ChunkInFilePosition>();
+    if(!enter()) return getForFile(file).getChunks();
     try {
+      final List<ChunkInFilePosition> res =
+          new ArrayList<ChunkInFilePosition>();
       for(int x = 0; x < 32; x++) {
         for(int z = 0; z < 32; z++) {
           if(regionSource.hasChunk(x, z)) {
-            final DataInputStream regionChunkInputStream =
-                regionSource.getChunkDataInputStream(x, z);
-            if(regionChunkInputStream == null) {
-              System.err.println("Failed to fetch input stream");
-              continue;
-            }
             res.add(new ChunkInFilePosition(x, z));
-            regionChunkInputStream.close();
           }
         }
       }
-    } catch(final IOException e) {
-      e.printStackTrace();
+      return res;
+    } finally {
+      exit();
     }
-    return res;
+  }
+
+  /**
+   * Computes the position of a chunk in the world. The position is derived
+   * from the region coordinates. Only when the file name does not reveal the
+   * region coordinates the chunk is read.
+   * 
+   * @param pos The position of the chunk in the file.
+   * @return The position of the chunk in blocks or <code>null</code> if the
+   *         chunk could not be read.
+   */
+  @SuppressWarnings("unchecked")
+  public ChunkPosition getChunkPosition(final ChunkInFilePosition pos) {
+    if(hasRegionPos) return new ChunkPosition((regionX * 32 + pos.x) * 16,
+        (regionZ * 32 + pos.z) * 16);
+    final NBTCompound root = read(pos);
+    if(root == null) return null;
+    final NBTCompound level = root.get("Level");
+    final int x = ((NBTNumeric<Integer>) level.get("xPos")).getPayload();
+    final int z = ((NBTNumeric<Integer>) level.get("zPos")).getPayload();
+    return new ChunkPosition(x * 16, z * 16);
   }
 
   /**
@@ -90,18 +254,67 @@ public final class MapReader {
    * @param pos The position of the chunk.
    * @return The record.
    */
-  public synchronized NBTCompound read(final ChunkInFilePosition pos) {
+  public NBTCompound read(final ChunkInFilePosition pos) {
+    return read(pos, null);
+  }
+
+  /**
+   * Reads a chunk record. Only fetching the raw bytes locks the region file.
+   * The chunk is decoded afterwards so that other chunks of the same region can
+   * be read in parallel.
+   * 
+   * @param pos The position of the chunk.
+   * @param ticket The ticket to cancel the read or <code>null</code>.
+   * @return The record or <code>null</code> if the chunk could not be read or
+   *         the read was cancelled.
+   */
+  public NBTCompound read(final ChunkInFilePosition pos,
+      final ReadTicket ticket) {
+    return read(pos, ticket, null);
+  }
+
+  /**
+   * Reads a chunk record keeping only records with the given names. Other
+   * records are skipped without being built.
+   * 
+   * @param pos The position of the chunk.
+   * @param ticket The ticket to cancel the read or <code>null</code>.
+   * @param names The names of the records to keep or <code>null</code> to
+   *          keep all records.
+   * @return The record or <code>null</code> if the chunk could not be read or
+   *         the read was cancelled.
+   */
+  public NBTCompound read(final ChunkInFilePosition pos,
+      final ReadTicket ticket, final Set<String> names) {
     NBTCompound rec = null;
     try {
-      if(regionSource.hasChunk(pos.x, pos.z)) {
-        final DataInputStream regionChunkInputStream =
-            regionSource.getChunkDataInputStream(pos.x, pos.z);
+      if(ticket != null && ticket.isCancelled()) return null;
+      if(!enter()) return getForFile(file).read(pos, ticket, names);
+      final boolean hasChunk;
+      final DataInputStream regionChunkInputStream;
+      try {
+        // the stream reads from a copy of the raw bytes
+        hasChunk = regionSource.hasChunk(pos.x, pos.z);
+        regionChunkInputStream = hasChunk
+            ? regionSource.getChunkDataInputStream(pos.x, pos.z) : null;
+      } finally {
+        exit();
+      }
+      if(hasChunk) {
         if(regionChunkInputStream == null) throw new IOException(
             "Failed to fetch input stream");
-        final NBTReader r = new NBTReader(regionChunkInputStream, false);
-        rec = r.read(NBTType.COMPOUND);
-        r.close();
+        final NBTReader r = new NBTReader(ticket != null
+            ? new CancellableInputStream(regionChunkInputStream, ticket)
+            : regionChunkInputStream, false);
+        try {
+          rec = names != null ? r.<NBTCompound> read(NBTType.COMPOUND,
+              names) : r.<NBTCompound> read(NBTType.COMPOUND);
+        } finally {
+          r.close();
+        }
       }
+    } catch(final InterruptedIOException e) {
+      rec = null;
     } catch(final IOException e) {
       e.printStackTrace();
     }
@@ -119,10 +332,32 @@ public final class MapReader {
   public synchronized void write(final NBTRecord rec, final int x, final int z)
       throws IOException {
     if(!rec.hasChanged()) return;
-    final NBTWriter out =
-        new NBTWriter(regionSource.getChunkDataOutputStream(x, z), false);
-    out.write(rec);
-    out.close();
+    if(!enter()) {
+      getForFile(file).write(rec, x, z);
+      return;
+    }
+    try {
+      final NBTWriter out =
+          new NBTWriter(regionSource.getChunkDataOutputStream(x, z), false);
+      out.write(rec);
+      out.close();
+      writtenModified = file.lastModified();
+      writtenLength = file.length();
+    } finally {
+      exit();
+    }
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the modification date and the length of the region file
+   *         are still the same as after the last write of this reader. In that
+   *         case the file has not been changed by another program since.
+   */
+  public boolean isUnchangedSinceWrite() {
+    return writtenModified == file.lastModified()
+        && writtenLength == file.length();
   }
 
 }
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
 import nbt.record.NBTRecord;
@@ -66,4 +67,25 @@ public class NBTReader extends PushBackReader {
     return (T) read;
   }
 
+  /**
+   * Reads the nbt stream keeping only records with the given names. Other
+   * records are skipped without being built. The root record is always kept.
+   * 
+   * @param exp Expected type, {@code null} for no check.
+   * @param names The names of the records to keep below the root.
+   * @param <T> The type.
+   * @return The root record.
+   * @throws IOException I/O Exception.
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends NBTRecord> T read(final NBTType exp,
+      final Set<String> names) throws IOException {
+    final NBTType type = NBTType.forTagId(readByte());
+    final String name = type == NBTType.END ? null : readString();
+    final NBTRecord read = NBTType.read(this, type, name, names);
+    if(exp != null && read.getType() != exp) throw new IllegalStateException(
+        "Expected: " + exp + " Got: " + read.getType());
+    return (T) read;
+  }
+
 }
@@ -185,6 +185,48 @@ public class PushBackReader implements Closeable {
     return arr;
   }
 
+  /**
+   * Reads a long array.
+   * 
+   * @return The array.
+   * @throws IOException If the end of stream is reached.
+   */
+  public long[] readLongArray() throws IOException {
+    final int length = readInt();
+    final long[] arr = new long[length];
+    for(int i = 0; i < length; ++i) {
+      arr[i] = readLong();
+    }
+    return arr;
+  }
+
+  /**
+   * Skips bytes without reading them.
+   * 
+   * @param count The number of bytes to skip.
+   * @throws IOException If the end of stream is reached.
+   */
+  public final void skip(final long count) throws IOException {
+    long n = count;
+    if(n > 0 && hasPushBack) {
+      hasPushBack = false;
+      --n;
+    }
+    while(n > 0) {
+      if(atEnd) throw new IOException("early EOF");
+      long s = is.skip(n);
+      if(s <= 0) {
+        // the stream cannot skip so the next byte is read
+        if(is.read() < 0) {
+          atEnd = true;
+          continue;
+        }
+        s = 1;
+      }
+      n -= s;
+    }
+  }
+
   /**
    * Whether there are still bytes to read.
    * 
@@ -0,0 +1,29 @@
+package nbt.read;
+
+/**
+ * A ticket that allows to cancel a read that is in progress. A cancelled read
+ * is aborted at the next byte that is read from the stream.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public class ReadTicket {
+
+  private volatile boolean cancelled;
+
+  /**
+   * Cancels the read.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the read has been cancelled.
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+}
@@ -14,6 +14,12 @@ public class NBTByteArray extends NBTRecord {
 
   private byte[] arr;
 
+  /** Whether the array may be shared and must be copied before a change. */
+  private boolean copyOnWrite;
+
+  /** Whether the array may be held by other records as well. */
+  private boolean shared;
+
   /**
    * Creates a new byte array.
    * 
@@ -51,7 +57,73 @@ public class NBTByteArray extends NBTRecord {
    * @param value Sets the byte at the given index.
    */
   public void setAt(final int pos, final byte value) {
-    arr[pos] = value;
+    writableArray()[pos] = value;
+    change();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The backing array for reading. It must not be changed.
+   */
+  byte[] array() {
+    return arr;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The backing array for writing. A shared array is copied first.
+   *         Changes must be signaled via {@link #changed()}.
+   */
+  byte[] writableArray() {
+    if(copyOnWrite) {
+      arr = arr.clone();
+      copyOnWrite = false;
+      shared = false;
+    }
+    return arr;
+  }
+
+  /**
+   * Marks the array as shared. The array is copied before the record is
+   * changed the next time.
+   * 
+   * @return The array. It must not be changed.
+   */
+  public byte[] share() {
+    copyOnWrite = true;
+    shared = true;
+    return arr;
+  }
+
+  /**
+   * Replaces the array by a shared array with the same content. The array is
+   * copied before the record is changed the next time.
+   * 
+   * @param arr The shared array. It must not be changed.
+   */
+  public void share(final byte[] arr) {
+    if(arr.length != this.arr.length) throw new IllegalArgumentException(
+        "length mismatch: " + arr.length + " != " + this.arr.length);
+    this.arr = arr;
+    copyOnWrite = true;
+    shared = true;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return Whether the array may be held by other records as well.
+   */
+  public boolean isShared() {
+    return shared;
+  }
+
+  /**
+   * Signals that the backing array has been changed.
+   */
+  void changed() {
     change();
   }
 
@@ -62,6 +134,8 @@ public class NBTByteArray extends NBTRecord {
    */
   public void setArray(final byte[] arr) {
     this.arr = arr;
+    copyOnWrite = false;
+    shared = false;
     change();
   }
 
@@ -15,7 +15,7 @@ import nbt.write.ByteWriter;
 public class NBTList<T extends NBTRecord> extends NBTRecord implements
     Iterable<T> {
 
-  private final NBTType type;
+  private NBTType type;
 
   private NBTRecord[] records;
 
@@ -72,6 +72,40 @@ public class NBTList<T extends NBTRecord> extends NBTRecord implements
     change();
   }
 
+  /**
+   * Appends an element. An empty list that has no element type yet takes the
+   * type of the element.
+   * 
+   * @param rec The new element. The value must not be <code>null</code> and
+   *          must have the same type as all other elements in the list.
+   */
+  public void add(final T rec) {
+    if(records.length == 0 && type == NBTType.END) {
+      type = rec.getType();
+    }
+    final NBTRecord[] old = records;
+    records = Arrays.copyOf(old, old.length + 1);
+    try {
+      setAt(old.length, rec);
+    } catch(final IllegalArgumentException e) {
+      records = old;
+      throw e;
+    }
+  }
+
+  /**
+   * Removes an element.
+   * 
+   * @param pos The index.
+   */
+  public void remove(final int pos) {
+    final NBTRecord[] res = new NBTRecord[records.length - 1];
+    System.arraycopy(records, 0, res, 0, pos);
+    System.arraycopy(records, pos + 1, res, pos, res.length - pos);
+    records = res;
+    change();
+  }
+
   /**
    * Getter.
    * 
@@ -0,0 +1,122 @@
+package nbt.record;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+import nbt.write.ByteWriter;
+
+/**
+ * A nbt long array.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public class NBTLongArray extends NBTRecord {
+
+  private long[] arr;
+
+  /**
+   * Creates a new long array record.
+   * 
+   * @param name The name of the record.
+   * @param arr The array.
+   */
+  public NBTLongArray(final String name, final long[] arr) {
+    super(NBTType.LONG_ARRAY, name);
+    this.arr = arr;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The length of the array.
+   */
+  public int getLength() {
+    return arr.length;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param pos The index.
+   * @return The value at the index.
+   */
+  public long getAt(final int pos) {
+    return arr[pos];
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param pos The index.
+   * @param value Sets a value at the given index.
+   */
+  public void setAt(final int pos, final long value) {
+    arr[pos] = value;
+    change();
+  }
+
+  /**
+   * Sets the array.
+   * 
+   * @param arr The new array.
+   */
+  public void setArray(final long[] arr) {
+    this.arr = arr;
+    change();
+  }
+
+  @Override
+  public boolean isTextEditable() {
+    return true;
+  }
+
+  @Override
+  public String getParseablePayload() {
+    final StringBuilder sb = new StringBuilder(arr.length * 16);
+    for(final long l : arr) {
+      final String str = "000000000000000" + Long.toHexString(l);
+      sb.append(str.substring(str.length() - 16));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void parsePayload(final String str) throws ParseException {
+    if(str.length() % 16 != 0) throw new ParseException("incorrect length",
+        str.length());
+    final long[] arr = new long[str.length() / 16];
+    for(int i = 0; i < arr.length; ++i) {
+      final String hex = str.substring(i * 16, i * 16 + 16);
+      try {
+        // parsed in halves since the value may exceed the signed range
+        final long hi = Long.parseLong(hex.substring(0, 8), 16);
+        final long lo = Long.parseLong(hex.substring(8), 16);
+        arr[i] = (hi << 32) | lo;
+      } catch(final NumberFormatException e) {
+        throw new ParseException("illegal characters " + hex, i * 16);
+      }
+    }
+    setArray(arr);
+  }
+
+  @Override
+  public boolean hasSize() {
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return getLength();
+  }
+
+  @Override
+  public void writePayload(final ByteWriter out) throws IOException {
+    out.write(arr);
+  }
+
+  @Override
+  public String getPayloadString() {
+    return "[" + getLength() + " longs]";
+  }
+
+}
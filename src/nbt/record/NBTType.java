@@ -3,6 +3,7 @@ package nbt.record;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import nbt.read.PushBackReader;
 
@@ -160,6 +161,17 @@ public enum NBTType {
     }
   },
 
+  /**
+   * A long array record.
+   */
+  LONG_ARRAY(12, NBTLongArray.class) { // NBTType.Int length ++ array of longs
+    @Override
+    public NBTLongArray read(final PushBackReader in, final String name)
+        throws IOException {
+      return new NBTLongArray(name, in.readLongArray());
+    }
+  },
+
   /* end of declaration */;
 
   /**
@@ -222,4 +234,127 @@ public enum NBTType {
     return type.read(in, name);
   }
 
+  /**
+   * Reads a record from the stream keeping only records with the given names.
+   * Records with other names are skipped without being built. The elements of
+   * kept lists are kept as well.
+   * 
+   * @param in The stream.
+   * @param names The names of the records to keep.
+   * @return The record, {@link NBTEnd#INSTANCE} at the end of a compound, or
+   *         <code>null</code> if the record has been skipped.
+   * @throws IOException I/O Exception.
+   */
+  public static final NBTRecord readRecord(final PushBackReader in,
+      final Set<String> names) throws IOException {
+    final NBTType type = forTagId(in.readByte());
+    if(type == END) return NBTEnd.INSTANCE;
+    final String name = in.readString();
+    if(!names.contains(name)) {
+      skip(in, type);
+      return null;
+    }
+    return read(in, type, name, names);
+  }
+
+  /**
+   * Reads the payload of a record keeping only nested records with the given
+   * names.
+   * 
+   * @param in The stream.
+   * @param type The type of the record.
+   * @param name The name of the record.
+   * @param names The names of the nested records to keep.
+   * @return The record.
+   * @throws IOException I/O Exception.
+   */
+  public static final NBTRecord read(final PushBackReader in,
+      final NBTType type, final String name, final Set<String> names)
+      throws IOException {
+    switch(type) {
+      case COMPOUND: {
+        final List<NBTRecord> list = new ArrayList<NBTRecord>();
+        for(;;) {
+          final NBTRecord cur = readRecord(in, names);
+          if(cur == NBTEnd.INSTANCE) {
+            break;
+          }
+          if(cur != null) {
+            list.add(cur);
+          }
+        }
+        return new NBTCompound(name, list);
+      }
+      case LIST: {
+        final NBTType t = forTagId(in.readByte());
+        final int length = in.readInt();
+        final NBTRecord[] list = new NBTRecord[length];
+        for(int i = 0; i < length; ++i) {
+          list[i] = read(in, t, null, names);
+        }
+        return new NBTList<NBTRecord>(name, t, list);
+      }
+      default:
+        return type.read(in, name);
+    }
+  }
+
+  /**
+   * Skips the payload of a record.
+   * 
+   * @param in The stream.
+   * @param type The type of the record.
+   * @throws IOException I/O Exception.
+   */
+  public static final void skip(final PushBackReader in, final NBTType type)
+      throws IOException {
+    switch(type) {
+      case END:
+        return;
+      case BYTE:
+        in.skip(1);
+        return;
+      case SHORT:
+        in.skip(2);
+        return;
+      case INT:
+      case FLOAT:
+        in.skip(4);
+        return;
+      case LONG:
+      case DOUBLE:
+        in.skip(8);
+        return;
+      case BYTE_ARRAY:
+        in.skip(in.readInt());
+        return;
+      case STRING:
+        in.skip(in.readShort() & 0xffff);
+        return;
+      case LIST: {
+        final NBTType t = forTagId(in.readByte());
+        final int length = in.readInt();
+        for(int i = 0; i < length; ++i) {
+          skip(in, t);
+        }
+        return;
+      }
+      case COMPOUND:
+        for(;;) {
+          final NBTType t = forTagId(in.readByte());
+          if(t == END) return;
+          in.skip(in.readShort() & 0xffff);
+          skip(in, t);
+        }
+      case INT_ARRAY:
+        in.skip(in.readInt() * 4L);
+        return;
+      case LONG_ARRAY:
+        in.skip(in.readInt() * 8L);
+        return;
+      default:
+        throw new InternalError("unknown type " + type);
+    }
+  }
+
 }
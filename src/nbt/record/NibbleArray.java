@@ -0,0 +1,173 @@
+package nbt.record;
+
+import java.util.Arrays;
+
+/**
+ * A view of a byte array record as an array of 4 bit values. Every byte holds
+ * two values, the value with the even index in the lower half. This is the
+ * layout of the <code>Data</code>, <code>BlockLight</code>,
+ * <code>SkyLight</code> and <code>AddBlocks</code> arrays of chunk sections.
+ * The values are accessed in place without unpacking the array. A shared
+ * array is copied before it is changed. A view of an array that is not part
+ * of its compound yet adds the array to the compound on the first change.
+ * 
+ * @author Joschi <josua.krause@googlemail.com>
+ */
+public final class NibbleArray {
+
+  private final NBTByteArray record;
+
+  /** The compound receiving the array on the first change or null. */
+  private volatile NBTCompound parent;
+
+  /**
+   * Creates a view of a record.
+   * 
+   * @param record The byte array record.
+   */
+  public NibbleArray(final NBTByteArray record) {
+    this(record, null);
+  }
+
+  /**
+   * Creates a view of a record that is added to a compound on the first
+   * change. Reading does not change the compound.
+   * 
+   * @param record The byte array record.
+   * @param parent The compound receiving the record or <code>null</code>.
+   */
+  public NibbleArray(final NBTByteArray record, final NBTCompound parent) {
+    this.record = record;
+    this.parent = parent;
+  }
+
+  /**
+   * Adds the record to its compound if that has not happened yet. Changes of
+   * the view do not change the compound afterwards.
+   */
+  public void attach() {
+    if(parent == null) return;
+    synchronized(this) {
+      final NBTCompound p = parent;
+      if(p != null) {
+        p.add(record);
+        parent = null;
+      }
+    }
+  }
+
+  /**
+   * Adds the record to its compound before the first change.
+   * 
+   * @return The array for writing.
+   */
+  private byte[] writable() {
+    attach();
+    return record.writableArray();
+  }
+
+  /**
+   * Getter.
+   * 
+   * @return The number of values.
+   */
+  public int length() {
+    return record.getLength() * 2;
+  }
+
+  /**
+   * Getter.
+   * 
+   * @param index The index.
+   * @return The value at the given index.
+   */
+  public int get(final int index) {
+    final byte b = record.array()[index >> 1];
+    return (index & 1) == 0 ? b & 0xf : (b >> 4) & 0xf;
+  }
+
+  /**
+   * Setter.
+   * 
+   * @param index The index.
+   * @param value The value. Only the lower 4 bits are used.
+   */
+  public void set(final int index, final int value) {
+    final byte[] arr = record.array();
+    final int i = index >> 1;
+    final int old = arr[i];
+    final int res = (index & 1) == 0 ? (old & 0xf0) | (value & 0xf)
+        : (old & 0x0f) | ((value & 0xf) << 4);
+    if(res == (old & 0xff)) return;
+    writable()[i] = (byte) res;
+    record.changed();
+  }
+
+  /**
+   * Unpacks a range of values.
+   * 
+   * @param from The first index.
+   * @param to The index after the last value.
+   * @param dst The array receiving one value per byte.
+   * @param off The offset in the destination array.
+   */
+  public void get(final int from, final int to, final byte[] dst,
+      final int off) {
+    final byte[] arr = record.array();
+    int o = off;
+    for(int i = from; i < to; ++i) {
+      final byte b = arr[i >> 1];
+      dst[o++] = (byte) ((i & 1) == 0 ? b & 0xf : (b >> 4) & 0xf);
+    }
+  }
+
+  /**
+   * Packs a range of values.
+   * 
+   * @param from The first index.
+   * @param src The array holding one value per byte.
+   * @param off The offset in the source array.
+   * @param len The number of values.
+   */
+  public void set(final int from, final byte[] src, final int off,
+      final int len) {
+    if(len <= 0) return;
+    final byte[] arr = writable();
+    for(int k = 0; k < len; ++k) {
+      final int i = from + k;
+      final int v = src[off + k] & 0xf;
+      final int b = arr[i >> 1];
+      arr[i >> 1] = (byte) ((i & 1) == 0 ? (b & 0xf0) | v : (b & 0x0f)
+          | (v << 4));
+    }
+    record.changed();
+  }
+
+  /**
+   * Fills a range with a value. Whole bytes are filled at once.
+   * 
+   * @param from The first index.
+   * @param to The index after the last value.
+   * @param value The value. Only the lower 4 bits are used.
+   */
+  public void fill(final int from, final int to, final int value) {
+    if(from >= to) return;
+    final byte[] arr = writable();
+    final int v = value & 0xf;
+    int start = from;
+    int end = to;
+    if((start & 1) != 0) {
+      arr[start >> 1] = (byte) ((arr[start >> 1] & 0x0f) | (v << 4));
+      ++start;
+    }
+    if((end & 1) != 0 && end > start) {
+      --end;
+      arr[end >> 1] = (byte) ((arr[end >> 1] & 0xf0) | v);
+    }
+    if(start < end) {
+      Arrays.fill(arr, start >> 1, end >> 1, (byte) (v | (v << 4)));
+    }
+    record.changed();
+  }
+
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import nbt.map.Chunk;
 import nbt.map.SerialChunkManager;
+import nbt.map.pos.InChunkPosition;
 import nbt.map.pos.WorldPosition;
 
 /**
@@ -211,7 +212,8 @@ public class World {
     final SerialChunkManager scm = getDimension(dim);
     final Chunk chunk = scm.getChunk(pos);
     if(chunk == null) throw new IllegalStateException("chunk does not exist");
-    final int res = chunk.getTopNonAirBlock(pos.getPosInChunk()).y;
+    final InChunkPosition p = pos.getPosInChunk();
+    final int res = chunk.getTopBlockY(p.x, p.z);
     scm.unloadChunk(chunk);
     return res;
   }
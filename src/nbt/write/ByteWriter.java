@@ -114,6 +114,20 @@ public class ByteWriter implements Closeable {
     }
   }
 
+  /**
+   * Writes a long array. Note that this is <em>not</em> equivalent to
+   * successive {@link #write(long)} calls!
+   * 
+   * @param arr The array.
+   * @throws IOException I/O Exception.
+   */
+  public final void write(final long[] arr) throws IOException {
+    write(arr.length);
+    for(final long l : arr) {
+      write(l);
+    }
+  }
+
   /**
    * Writes a string.
    * 
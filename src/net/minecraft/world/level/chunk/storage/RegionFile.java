@@ -47,6 +47,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
@@ -72,6 +73,9 @@ public class RegionFile {
   private static final int SECTOR_BYTES = 4096;
   private static final int SECTOR_INTS = SECTOR_BYTES / 4;
 
+  /** The number of chunks in a region file. */
+  public static final int CHUNKS = SECTOR_INTS;
+
   static final int CHUNK_HEADER_SIZE = 5;
   private static final byte[] EMPTY_SECTOR = new byte[4096];
 
@@ -155,6 +159,33 @@ public class RegionFile {
     }
   }
 
+  /**
+   * Reads only the header of a region file. The file is opened read-only and
+   * is neither grown nor otherwise modified.
+   * 
+   * @param path The file.
+   * @param offsets An array of length {@link #CHUNKS} that is filled with the
+   *          chunk offsets. The index of a chunk is <code>x + z * 32</code>.
+   * @param timestamps An array of length {@link #CHUNKS} that is filled with
+   *          the chunk timestamps.
+   * @throws IOException I/O Exception.
+   */
+  public static void readHeader(final File path, final int[] offsets,
+      final int[] timestamps) throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(path), SECTOR_BYTES * 2));
+    try {
+      for(int i = 0; i < SECTOR_INTS; ++i) {
+        offsets[i] = in.readInt();
+      }
+      for(int i = 0; i < SECTOR_INTS; ++i) {
+        timestamps[i] = in.readInt();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
   /**
    * Getter.
    * 
@@ -402,6 +433,18 @@ public class RegionFile {
     return offsets[x + z * 32];
   }
 
+  /**
+   * Copies the header as it is known to this instance. The header includes the
+   * changes made through this instance.
+   * 
+   * @param offs The array receiving the raw sector offsets.
+   * @param timestamps The array receiving the timestamps.
+   */
+  public synchronized void getHeader(final int[] offs, final int[] timestamps) {
+    System.arraycopy(offsets, 0, offs, 0, SECTOR_INTS);
+    System.arraycopy(chunkTimestamps, 0, timestamps, 0, SECTOR_INTS);
+  }
+
   /**
    * Getter.
    * 
@@ -432,7 +475,7 @@ public class RegionFile {
    * 
    * @throws IOException I/O Exception.
    */
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
     file.close();
   }
 }